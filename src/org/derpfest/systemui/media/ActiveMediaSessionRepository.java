@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.media;
+
+import android.content.Context;
+import android.media.MediaMetadata;
+import android.media.session.MediaController;
+import android.media.session.MediaSessionManager;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Background;
+import com.android.systemui.statusbar.policy.CallbackController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * Keeps track of the primary active media session for SystemUI.
+ *
+ * Active sessions are watched once, on the background thread, for the lifetime of SystemUI.
+ * The primary controller together with its last playback state and metadata is cached, so
+ * subscribers get the current state without any media session binder calls.
+ * All callbacks are delivered on the background thread.
+ */
+@SysUISingleton
+public class ActiveMediaSessionRepository
+        implements CallbackController<ActiveMediaSessionRepository.Callback> {
+
+    private static final String TAG = "ActiveMediaSessionRepo";
+
+    public interface Callback {
+        void onMediaSessionChanged(@Nullable MediaController controller,
+                @Nullable PlaybackState state, @Nullable MediaMetadata metadata);
+    }
+
+    private final MediaSessionManager mMediaSessionManager;
+    private final Handler mBgHandler;
+    private final List<Callback> mCallbacks = new ArrayList<>();
+
+    private boolean mStarted;
+    private MediaController mController;
+    private PlaybackState mPlaybackState;
+    private MediaMetadata mMetadata;
+
+    private final MediaController.Callback mControllerCallback = new MediaController.Callback() {
+        @Override
+        public void onPlaybackStateChanged(PlaybackState state) {
+            mPlaybackState = state;
+            dispatch();
+        }
+
+        @Override
+        public void onMetadataChanged(MediaMetadata metadata) {
+            mMetadata = metadata;
+            dispatch();
+            mMetadata = stripArtwork(metadata);
+        }
+
+        @Override
+        public void onSessionDestroyed() {
+            setController(null);
+        }
+    };
+
+    private final MediaSessionManager.OnActiveSessionsChangedListener mSessionListener =
+            controllers -> setController(controllers != null && !controllers.isEmpty()
+                    ? controllers.get(0) : null);
+
+    @Inject
+    public ActiveMediaSessionRepository(Context context, @Background Handler bgHandler) {
+        mMediaSessionManager = context.getSystemService(MediaSessionManager.class);
+        mBgHandler = bgHandler;
+    }
+
+    @Override
+    public void addCallback(@NonNull Callback callback) {
+        mBgHandler.post(() -> {
+            mCallbacks.add(callback);
+            startIfNeeded();
+            callback.onMediaSessionChanged(mController, mPlaybackState, mMetadata);
+        });
+    }
+
+    @Override
+    public void removeCallback(@NonNull Callback callback) {
+        mBgHandler.post(() -> mCallbacks.remove(callback));
+    }
+
+    private void startIfNeeded() {
+        if (mStarted) return;
+        mStarted = true;
+        try {
+            mMediaSessionManager.addOnActiveSessionsChangedListener(
+                    mSessionListener, null, mBgHandler);
+            List<MediaController> controllers = mMediaSessionManager.getActiveSessions(null);
+            setController(controllers != null && !controllers.isEmpty()
+                    ? controllers.get(0) : null);
+        } catch (SecurityException e) {
+            Log.d(TAG, "Security exception on media controller", e);
+        }
+    }
+
+    private void setController(@Nullable MediaController controller) {
+        if (controller != null && mController != null
+                && controller.getSessionToken().equals(mController.getSessionToken())) {
+            // Same session, keep the cached state and registration
+            return;
+        }
+        if (mController != null) {
+            mController.unregisterCallback(mControllerCallback);
+        }
+        mController = controller;
+        if (mController != null) {
+            mController.registerCallback(mControllerCallback, mBgHandler);
+            mPlaybackState = mController.getPlaybackState();
+            mMetadata = mController.getMetadata();
+        } else {
+            mPlaybackState = null;
+            mMetadata = null;
+        }
+        dispatch();
+        mMetadata = stripArtwork(mMetadata);
+    }
+
+    /**
+     * Subscribers that want artwork pick it up from the live callback, the cached copy only
+     * keeps the text so full size bitmaps are not held on to.
+     */
+    @Nullable
+    private static MediaMetadata stripArtwork(@Nullable MediaMetadata metadata) {
+        if (metadata == null) return null;
+        return new MediaMetadata.Builder(metadata)
+                .putBitmap(MediaMetadata.METADATA_KEY_ART, null)
+                .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, null)
+                .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, null)
+                .build();
+    }
+
+    private void dispatch() {
+        for (int i = 0; i < mCallbacks.size(); i++) {
+            mCallbacks.get(i).onMediaSessionChanged(mController, mPlaybackState, mMetadata);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import androidx.annotation.Nullable;
+
+import com.android.systemui.util.concurrency.DelayableExecutor;
+import com.android.systemui.util.time.SystemClock;
+
+/**
+ * Countdown for {@link CaffeineTile} that is driven by an absolute deadline.
+ *
+ * Only one callback is scheduled for the expiry itself. Per-second ticks, which exist purely
+ * to refresh the remaining time label, are only posted while the tile is visible.
+ */
+final class CaffeineCountdown {
+
+    interface Callback {
+        /** The remaining time label changed. */
+        void onTick();
+
+        /** The deadline has passed. */
+        void onExpired();
+    }
+
+    /** Remaining time reported for a countdown without a deadline. */
+    static final long INFINITE = -1;
+
+    private final DelayableExecutor mExecutor;
+    private final SystemClock mSystemClock;
+    private final Callback mCallback;
+
+    // Cancel the scheduled callbacks
+    @Nullable
+    private Runnable mCancelTick;
+    @Nullable
+    private Runnable mCancelExpire;
+
+    private boolean mRunning;
+    private long mDeadline;
+    private boolean mVisible;
+
+    /**
+     * @param executor runs the callbacks, its clock must be {@code systemClock}
+     */
+    CaffeineCountdown(DelayableExecutor executor, SystemClock systemClock, Callback callback) {
+        mExecutor = executor;
+        mSystemClock = systemClock;
+        mCallback = callback;
+    }
+
+    /** Starts counting down from {@code durationMillis}, or forever if {@link #INFINITE}. */
+    void start(long durationMillis) {
+        cancel();
+        mRunning = true;
+        if (durationMillis == INFINITE) {
+            mDeadline = INFINITE;
+            return;
+        }
+        mDeadline = mSystemClock.elapsedRealtime() + durationMillis;
+        mCancelExpire = mExecutor.executeDelayed(this::expire, durationMillis);
+        scheduleTick();
+    }
+
+    void cancel() {
+        mRunning = false;
+        if (mCancelExpire != null) {
+            mCancelExpire.run();
+            mCancelExpire = null;
+        }
+        cancelTick();
+    }
+
+    /** Ticks are only delivered while the countdown is visible. */
+    void setVisible(boolean visible) {
+        if (mVisible == visible) return;
+        mVisible = visible;
+        if (mVisible) {
+            scheduleTick();
+        } else {
+            cancelTick();
+        }
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /** Returns the elapsed-realtime deadline, or {@link #INFINITE}. */
+    long getDeadline() {
+        return mDeadline;
+    }
+
+    /** Returns the time left until the deadline, or {@link #INFINITE}. */
+    long getRemainingMillis() {
+        if (mDeadline == INFINITE) {
+            return INFINITE;
+        }
+        return Math.max(0, mDeadline - mSystemClock.elapsedRealtime());
+    }
+
+    private void scheduleTick() {
+        cancelTick();
+        if (!mRunning || !mVisible || mDeadline == INFINITE) {
+            return;
+        }
+        // Land just after the next whole second so the label changes on time
+        final long remaining = getRemainingMillis();
+        final long delay = remaining % 1000;
+        mCancelTick = mExecutor.executeDelayed(this::tick, delay == 0 ? 1000 : delay);
+    }
+
+    private void cancelTick() {
+        if (mCancelTick != null) {
+            mCancelTick.run();
+            mCancelTick = null;
+        }
+    }
+
+    private void tick() {
+        mCancelTick = null;
+        if (getRemainingMillis() > 0) {
+            mCallback.onTick();
+            scheduleTick();
+        }
+    }
+
+    private void expire() {
+        mRunning = false;
+        mCancelExpire = null;
+        cancelTick();
+        mCallback.onExpired();
+    }
+}
@@ -23,14 +23,15 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.CountDownTimer;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.PowerManager;
-import android.os.SystemClock;
+import android.provider.Settings;
 import android.service.quicksettings.Tile;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.android.internal.logging.MetricsLogger;
 import com.android.systemui.animation.Expandable;
@@ -45,18 +46,19 @@ import com.android.systemui.qs.QsEventLogger;
 import com.android.systemui.qs.logging.QSLogger;
 import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.res.R;
+import com.android.systemui.util.concurrency.DelayableExecutor;
+import com.android.systemui.util.time.SystemClock;
 
 import javax.inject.Inject;
 
 /** Quick settings tile: Caffeine **/
-public class CaffeineTile extends QSTileImpl<BooleanState> {
+public class CaffeineTile extends QSTileImpl<BooleanState> implements CaffeineCountdown.Callback {
 
     public static final String TILE_SPEC = "caffeine";
 
     private final Icon mIcon = ResourceIcon.get(R.drawable.ic_qs_caffeine);
 
     private final PowerManager.WakeLock mWakeLock;
-    private int mSecondsRemaining;
     private int mDuration;
     private static int[] DURATIONS = new int[] {
         5 * 60,   // 5 min
@@ -65,10 +67,17 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
         -1,       // infinity
     };
     private static final int INFINITE_DURATION_INDEX = DURATIONS.length - 1;
-    private CountDownTimer mCountdownTimer = null;
+    private final CaffeineCountdown mCountdown;
+    private final SystemClock mSystemClock;
+    private final SharedPreferences mPrefs;
     public long mLastClickTime = -1;
     private final Receiver mReceiver = new Receiver();
 
+    private static final String PREFS_NAME = "caffeine_tile";
+    private static final String KEY_DURATION = "duration";
+    private static final String KEY_DEADLINE = "deadline";
+    private static final String KEY_BOOT_COUNT = "boot_count";
+
     @Inject
     public CaffeineTile(
             QSHost host,
@@ -79,13 +88,23 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
             MetricsLogger metricsLogger,
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
-            QSLogger qsLogger
+            QSLogger qsLogger,
+            SystemClock systemClock,
+            @Background DelayableExecutor bgExecutor
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
                 statusBarStateController, activityStarter, qsLogger);
         mWakeLock = mContext.getSystemService(PowerManager.class).newWakeLock(
                 PowerManager.FULL_WAKE_LOCK, "CaffeineTile");
+        // Timed acquires replace each other instead of stacking up
+        mWakeLock.setReferenceCounted(false);
+        mSystemClock = systemClock;
+        // Runs on the background looper like the rest of the tile
+        mCountdown = new CaffeineCountdown(bgExecutor, mSystemClock, this);
+        mPrefs = mContext.createDeviceProtectedStorageContext().getSharedPreferences(
+                PREFS_NAME, Context.MODE_PRIVATE);
         mReceiver.init();
+        mHandler.post(this::restoreState);
     }
 
     @Override
@@ -96,15 +115,17 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
     @Override
     protected void handleDestroy() {
         super.handleDestroy();
-        stopCountDown();
+        stopCaffeine();
         mReceiver.destroy();
-        if (mWakeLock.isHeld()) {
-            mWakeLock.release();
-        }
     }
 
     @Override
     public void handleSetListening(boolean listening) {
+        mCountdown.setVisible(listening);
+        if (listening) {
+            // The label was not ticking while hidden
+            refreshState();
+        }
     }
 
     @Override
@@ -113,49 +134,37 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
         // we cycle different duration
         // otherwise toggle on/off
         if (mWakeLock.isHeld() && (mLastClickTime != -1) &&
-                (SystemClock.elapsedRealtime() - mLastClickTime < 5000)) {
+                (mSystemClock.elapsedRealtime() - mLastClickTime < 5000)) {
             // cycle duration
             mDuration++;
             if (mDuration >= DURATIONS.length) {
                 // all durations cycled, turn if off
                 mDuration = -1;
-                stopCountDown();
-                if (mWakeLock.isHeld()) {
-                    mWakeLock.release();
-                }
+                stopCaffeine();
             } else {
                 // change duration
-                startCountDown(DURATIONS[mDuration]);
-                if (!mWakeLock.isHeld()) {
-                    mWakeLock.acquire();
-                }
+                startCaffeine(getDurationMillis(mDuration));
             }
         } else {
             // toggle
             if (mWakeLock.isHeld()) {
-                mWakeLock.release();
-                stopCountDown();
+                stopCaffeine();
             } else {
-                mWakeLock.acquire();
                 mDuration = 0;
-                startCountDown(DURATIONS[mDuration]);
+                startCaffeine(getDurationMillis(mDuration));
             }
         }
-        mLastClickTime = SystemClock.elapsedRealtime();
+        mLastClickTime = mSystemClock.elapsedRealtime();
         refreshState();
     }
 
     @Override
     protected void handleLongClick(@Nullable Expandable expandable) {
-        if (mWakeLock.isHeld()) {
-            if (mDuration == INFINITE_DURATION_INDEX) {
-                return;
-            }
-        } else {
-            mWakeLock.acquire();
+        if (mWakeLock.isHeld() && mDuration == INFINITE_DURATION_INDEX) {
+            return;
         }
         mDuration = INFINITE_DURATION_INDEX;
-        startCountDown(DURATIONS[INFINITE_DURATION_INDEX]);
+        startCaffeine(CaffeineCountdown.INFINITE);
         refreshState();
     }
 
@@ -174,43 +183,97 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
         return VIEW_UNKNOWN;
     }
 
-    private void startCountDown(long duration) {
-        stopCountDown();
-        mSecondsRemaining = (int)duration;
-        if (duration == -1) {
-            // infinity timing, no need to start timer
-            return;
+    private static long getDurationMillis(int index) {
+        return DURATIONS[index] == -1 ? CaffeineCountdown.INFINITE : DURATIONS[index] * 1000L;
+    }
+
+    private void startCaffeine(long durationMillis) {
+        if (durationMillis == CaffeineCountdown.INFINITE) {
+            mWakeLock.acquire();
+        } else {
+            // The wake lock releases itself from SystemUI's main looper at the timeout,
+            // even if the tile's own expiry runs late
+            mWakeLock.acquire(durationMillis);
         }
-        mCountdownTimer = new CountDownTimer(duration * 1000, 1000) {
-            @Override
-            public void onTick(long millisUntilFinished) {
-                mSecondsRemaining = (int) (millisUntilFinished / 1000);
-                refreshState();
-            }
+        mCountdown.start(durationMillis);
+        mPrefs.edit()
+                .putInt(KEY_DURATION, mDuration)
+                .putLong(KEY_DEADLINE, mCountdown.getDeadline())
+                .putInt(KEY_BOOT_COUNT, getBootCount())
+                .apply();
+    }
 
-            @Override
-            public void onFinish() {
-                if (mWakeLock.isHeld())
-                    mWakeLock.release();
-                refreshState();
-            }
+    private void stopCaffeine() {
+        mCountdown.cancel();
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+        mPrefs.edit().clear().apply();
+    }
 
-        }.start();
+    /** Picks up a caffeine session that was running before SystemUI restarted. */
+    private void restoreState() {
+        if (!mPrefs.contains(KEY_DURATION) || mWakeLock.isHeld()) {
+            return;
+        }
+        final int duration = mPrefs.getInt(KEY_DURATION, -1);
+        final long remaining = duration < 0 || duration >= DURATIONS.length ? 0
+                : getRestoredRemaining(getDurationMillis(duration),
+                        mPrefs.getLong(KEY_DEADLINE, CaffeineCountdown.INFINITE),
+                        mPrefs.getInt(KEY_BOOT_COUNT, -1), getBootCount(),
+                        mSystemClock.elapsedRealtime());
+        if (remaining == 0) {
+            stopCaffeine();
+            return;
+        }
+        mDuration = duration;
+        startCaffeine(remaining);
+        refreshState();
     }
 
-    private void stopCountDown() {
-        if (mCountdownTimer != null) {
-            mCountdownTimer.cancel();
-            mCountdownTimer = null;
+    /**
+     * Returns how long a saved session has left, {@link CaffeineCountdown#INFINITE} if it
+     * has no deadline, or 0 if it can't be resumed.
+     */
+    @VisibleForTesting
+    static long getRestoredRemaining(long durationMillis, long deadline, int savedBootCount,
+            int bootCount, long now) {
+        // Elapsed realtime restarts from zero on boot, so deadlines don't survive reboots
+        if (savedBootCount != bootCount) {
+            return 0;
+        }
+        if (durationMillis == CaffeineCountdown.INFINITE) {
+            return CaffeineCountdown.INFINITE;
         }
+        final long remaining = deadline - now;
+        // More than the duration means the clock or the prefs are off
+        return remaining <= 0 || remaining > durationMillis ? 0 : remaining;
+    }
+
+    private int getBootCount() {
+        return Settings.Global.getInt(mContext.getContentResolver(),
+                Settings.Global.BOOT_COUNT, -1);
+    }
+
+    @Override
+    public void onTick() {
+        refreshState();
+    }
+
+    @Override
+    public void onExpired() {
+        stopCaffeine();
+        refreshState();
     }
 
     private String formatValueWithRemainingTime() {
-        if (mSecondsRemaining == -1) {
+        final long millisRemaining = mCountdown.getRemainingMillis();
+        if (millisRemaining == CaffeineCountdown.INFINITE) {
             return "\u221E"; // infinity
         }
+        final int secondsRemaining = (int) ((millisRemaining + 999) / 1000);
         return String.format("%02d:%02d",
-                        mSecondsRemaining / 60 % 60, mSecondsRemaining % 60);
+                        secondsRemaining / 60 % 60, secondsRemaining % 60);
     }
 
     @Override
@@ -249,9 +312,7 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
             String action = intent.getAction();
             if (Intent.ACTION_SCREEN_OFF.equals(action)) {
                 // disable caffeine if user force off (power button)
-                stopCountDown();
-                if (mWakeLock.isHeld())
-                    mWakeLock.release();
+                stopCaffeine();
                 refreshState();
             }
         }
@@ -43,6 +43,7 @@ import com.android.systemui.Prefs;
 import com.android.systemui.animation.Expandable;
 import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.dagger.qualifiers.UiBackground;
 import com.android.systemui.plugins.ActivityStarter;
 import com.android.systemui.plugins.FalsingManager;
 import com.android.systemui.plugins.qs.QSIconView;
@@ -60,6 +61,10 @@ import com.android.systemui.statusbar.connectivity.SignalCallback;
 import com.android.systemui.statusbar.phone.SystemUIDialog;
 import com.android.systemui.statusbar.policy.KeyguardStateController;
 
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
 import javax.inject.Inject;
 
 /** Quick settings tile: Cellular **/
@@ -73,6 +78,7 @@ public class CellularTile extends QSTileImpl<BooleanState> {
     private final DataUsageController mDataController;
     private final KeyguardStateController mKeyguard;
     private final CellSignalCallback mSignalCallback = new CellSignalCallback();
+    private final DataUsageAggregate mDataUsage;
 
     @Inject
     public CellularTile(
@@ -86,14 +92,16 @@ public class CellularTile extends QSTileImpl<BooleanState> {
             ActivityStarter activityStarter,
             QSLogger qsLogger,
             NetworkController networkController,
-            KeyguardStateController keyguardStateController
-
+            KeyguardStateController keyguardStateController,
+            @UiBackground Executor uiBgExecutor
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
                 statusBarStateController, activityStarter, qsLogger);
         mController = networkController;
         mKeyguard = keyguardStateController;
         mDataController = mController.getMobileDataController();
+        mDataUsage = new DataUsageAggregate(mContext, uiBgExecutor, mHandler,
+                () -> refreshState());
         mController.observe(getLifecycle(), mSignalCallback);
     }
 
@@ -151,6 +159,14 @@ public class CellularTile extends QSTileImpl<BooleanState> {
         dialog.show();
     }
 
+    @Override
+    public void handleSetListening(boolean listening) {
+        super.handleSetListening(listening);
+        if (listening) {
+            mDataUsage.requestRefresh();
+        }
+    }
+
     @Override
     protected void handleSecondaryClick(@Nullable Expandable expandable) {
         handleLongClick(expandable);
@@ -165,7 +181,7 @@ public class CellularTile extends QSTileImpl<BooleanState> {
     protected void handleUpdateState(BooleanState state, Object arg) {
         CallbackInfo cb = (CallbackInfo) arg;
         if (cb == null) {
-            cb = mSignalCallback.mInfo;
+            cb = mSignalCallback.mSnapshots.get();
         }
 
         final Resources r = mContext.getResources();
@@ -189,10 +205,9 @@ public class CellularTile extends QSTileImpl<BooleanState> {
             state.secondaryLabel = r.getString(R.string.status_bar_airplane);
         } else if (mobileDataEnabled) {
             state.state = Tile.STATE_ACTIVE;
-            state.secondaryLabel = appendMobileDataType(
+            state.secondaryLabel = getMobileDataLabel(
                     // Only show carrier name if there are more than 1 subscription
-                    cb.multipleSubs ? cb.dataSubscriptionName : "",
-                    getMobileDataContentName(cb));
+                    cb.multipleSubs ? cb.dataSubscriptionName : "", cb);
         } else {
             state.state = Tile.STATE_INACTIVE;
             state.secondaryLabel = r.getString(R.string.cell_data_off);
@@ -207,15 +222,24 @@ public class CellularTile extends QSTileImpl<BooleanState> {
         }
     }
 
-    private CharSequence appendMobileDataType(CharSequence current, CharSequence dataType) {
+    /** Returns the parsed carrier, data type and data usage label. */
+    private CharSequence getMobileDataLabel(CharSequence carrierName, CallbackInfo cb) {
+        final CharSequence usage = mDataUsage.getUsageText();
+        String html = appendMobileDataType(carrierName, getMobileDataContentName(cb));
+        if (!TextUtils.isEmpty(usage)) {
+            html = appendMobileDataType(html, TextUtils.htmlEncode(usage.toString()));
+        }
+        return Html.fromHtml(html, 0);
+    }
+
+    private String appendMobileDataType(CharSequence current, CharSequence dataType) {
         if (TextUtils.isEmpty(dataType)) {
-            return Html.fromHtml(current.toString(), 0);
+            return current.toString();
         }
         if (TextUtils.isEmpty(current)) {
-            return Html.fromHtml(dataType.toString(), 0);
+            return dataType.toString();
         }
-        String concat = mContext.getString(R.string.mobile_carrier_text_format, current, dataType);
-        return Html.fromHtml(concat, 0);
+        return mContext.getString(R.string.mobile_carrier_text_format, current, dataType);
     }
 
     private CharSequence getMobileDataContentName(CallbackInfo cb) {
@@ -236,19 +260,84 @@ public class CellularTile extends QSTileImpl<BooleanState> {
             && mHost.getUserContext().getUserId() == UserHandle.USER_SYSTEM;
     }
 
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        mSignalCallback.mSnapshots.dump(pw);
+        mDataUsage.dump(pw);
+    }
+
+    /** Immutable snapshot of the signal callbacks, compared to skip redundant refreshes. */
     private static final class CallbackInfo {
-        boolean airplaneModeEnabled;
+        final boolean airplaneModeEnabled;
         @Nullable
-        CharSequence dataSubscriptionName;
+        final CharSequence dataSubscriptionName;
         @Nullable
-        CharSequence dataContentDescription;
-        boolean noSim;
-        boolean roaming;
-        boolean multipleSubs;
+        final CharSequence dataContentDescription;
+        final boolean noSim;
+        final boolean roaming;
+        final boolean multipleSubs;
+
+        CallbackInfo() {
+            this(false, null, null, false, false, false);
+        }
+
+        CallbackInfo(boolean airplaneModeEnabled, @Nullable CharSequence dataSubscriptionName,
+                @Nullable CharSequence dataContentDescription, boolean noSim, boolean roaming,
+                boolean multipleSubs) {
+            this.airplaneModeEnabled = airplaneModeEnabled;
+            this.dataSubscriptionName = dataSubscriptionName;
+            this.dataContentDescription = dataContentDescription;
+            this.noSim = noSim;
+            this.roaming = roaming;
+            this.multipleSubs = multipleSubs;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CallbackInfo)) return false;
+            CallbackInfo other = (CallbackInfo) o;
+            return airplaneModeEnabled == other.airplaneModeEnabled
+                    && noSim == other.noSim
+                    && roaming == other.roaming
+                    && multipleSubs == other.multipleSubs
+                    && TextUtils.equals(dataSubscriptionName, other.dataSubscriptionName)
+                    && TextUtils.equals(dataContentDescription, other.dataContentDescription);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(airplaneModeEnabled, noSim, roaming, multipleSubs,
+                    TextUtils.isEmpty(dataSubscriptionName)
+                            ? null : dataSubscriptionName.toString(),
+                    TextUtils.isEmpty(dataContentDescription)
+                            ? null : dataContentDescription.toString());
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder("CallbackInfo[")
+                    .append("airplaneModeEnabled=").append(airplaneModeEnabled)
+                    .append(",dataSubscriptionName=").append(dataSubscriptionName)
+                    .append(",dataContentDescription=").append(dataContentDescription)
+                    .append(",noSim=").append(noSim)
+                    .append(",roaming=").append(roaming)
+                    .append(",multipleSubs=").append(multipleSubs)
+                    .append(']').toString();
+        }
     }
 
     private final class CellSignalCallback implements SignalCallback {
-        private final CallbackInfo mInfo = new CallbackInfo();
+        private final SignalStateCoalescer<CallbackInfo> mSnapshots = new SignalStateCoalescer<>(
+                mHandler, new CallbackInfo(), this::onStateChanged);
+
+        private boolean mAirplaneModeEnabled;
+        private CharSequence mDataSubscriptionName;
+        private CharSequence mDataContentDescription;
+        private boolean mNoSim;
+        private boolean mRoaming;
+        private boolean mMultipleSubs;
 
         @Override
         public void setMobileDataIndicators(@NonNull MobileDataIndicators indicators) {
@@ -256,24 +345,35 @@ public class CellularTile extends QSTileImpl<BooleanState> {
                 // Not data sim, don't display.
                 return;
             }
-            mInfo.dataSubscriptionName = mController.getMobileDataNetworkName();
-            mInfo.dataContentDescription = indicators.qsDescription != null
+            mDataSubscriptionName = mController.getMobileDataNetworkName();
+            mDataContentDescription = indicators.qsDescription != null
                     ? indicators.typeContentDescriptionHtml : null;
-            mInfo.roaming = indicators.roaming;
-            mInfo.multipleSubs = mController.getNumberSubscriptions() > 1;
-            refreshState(mInfo);
+            mRoaming = indicators.roaming;
+            mMultipleSubs = mController.getNumberSubscriptions() > 1;
+            postState();
         }
 
         @Override
         public void setNoSims(boolean show, boolean simDetected) {
-            mInfo.noSim = show;
-            refreshState(mInfo);
+            mNoSim = show;
+            postState();
         }
 
         @Override
         public void setIsAirplaneMode(@NonNull IconState icon) {
-            mInfo.airplaneModeEnabled = icon.visible;
-            refreshState(mInfo);
+            mAirplaneModeEnabled = icon.visible;
+            postState();
+        }
+
+        private void onStateChanged(CallbackInfo info) {
+            // Usage grows while data moves, so signal changes are a good time to catch up
+            mDataUsage.requestRefresh();
+            refreshState(info);
+        }
+
+        private void postState() {
+            mSnapshots.post(new CallbackInfo(mAirplaneModeEnabled, mDataSubscriptionName,
+                    mDataContentDescription, mNoSim, mRoaming, mMultipleSubs));
         }
     }
 
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+
+/**
+ * Turns sensor samples into a compass heading for {@link CompassTile}.
+ *
+ * Rotation vector events are used as-is; raw accelerometer and magnetometer samples are
+ * low-pass filtered and combined into a rotation matrix first.
+ *
+ * All working buffers are allocated once up front, so feeding events into the engine
+ * does not create any garbage once it is running.
+ */
+final class CompassHeadingEngine {
+
+    /** Receives the computed heading, in degrees within [0, 360). */
+    interface Callback {
+        void onHeadingChanged(float degrees);
+    }
+
+    private static final float ALPHA = 0.97f;
+
+    private final Callback mCallback;
+
+    private final float[] mAcceleration = new float[3];
+    private final float[] mGeomagnetic = new float[3];
+    private final float[] mRotationMatrix = new float[9];
+    private final float[] mInclinationMatrix = new float[9];
+    private final float[] mOrientation = new float[3];
+
+    private boolean mHasAcceleration;
+    private boolean mHasGeomagnetic;
+
+    CompassHeadingEngine(Callback callback) {
+        mCallback = callback;
+    }
+
+    /** Drops the filtered history, e.g. when the sensors are re-registered. */
+    void reset() {
+        mHasAcceleration = false;
+        mHasGeomagnetic = false;
+    }
+
+    void onSensorChanged(SensorEvent event) {
+        final int type = event.sensor.getType();
+        if (type == Sensor.TYPE_ROTATION_VECTOR
+                || type == Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR) {
+            // Already fused and filtered by the sensor hub
+            SensorManager.getRotationMatrixFromVector(mRotationMatrix, event.values);
+            publishAzimuth();
+            return;
+        }
+
+        if (type == Sensor.TYPE_ACCELEROMETER) {
+            lowPass(event.values, mAcceleration, mHasAcceleration);
+            mHasAcceleration = true;
+        } else {
+            // Magnetic field sensor
+            lowPass(event.values, mGeomagnetic, mHasGeomagnetic);
+            mHasGeomagnetic = true;
+        }
+
+        if (!mHasAcceleration || !mHasGeomagnetic) {
+            // Nothing to do at this moment
+            return;
+        }
+
+        if (!SensorManager.getRotationMatrix(
+                mRotationMatrix, mInclinationMatrix, mAcceleration, mGeomagnetic)) {
+            // Rotation matrix couldn't be calculated
+            return;
+        }
+
+        publishAzimuth();
+    }
+
+    private void publishAzimuth() {
+        SensorManager.getOrientation(mRotationMatrix, mOrientation);
+
+        // Convert azimuth to degrees
+        float degrees = (float) Math.toDegrees(mOrientation[0]);
+        mCallback.onHeadingChanged((degrees + 360) % 360);
+    }
+
+    private static void lowPass(float[] input, float[] output, boolean initialized) {
+        for (int i = 0; i < 3; i++) {
+            output[i] = initialized ? ALPHA * output[i] + (1 - ALPHA) * input[i] : input[i];
+        }
+    }
+}
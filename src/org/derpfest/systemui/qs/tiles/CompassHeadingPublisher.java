@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides which headings computed by {@link CompassHeadingEngine} are worth a tile refresh.
+ *
+ * A heading is published at most once per frame interval, and only if it moved by more
+ * than the threshold since the last published one, taking the 359° to 0° wrap into account.
+ * Batched sensor events arrive in bursts, so the newest heading held back by the interval is
+ * kept and can be published once the interval is over.
+ */
+final class CompassHeadingPublisher {
+
+    private final long mMinIntervalMs;
+    private final float mThresholdDegrees;
+
+    private boolean mHasPublished;
+    private float mLastHeading;
+    private long mLastPublishTime;
+
+    private boolean mHasPending;
+    private float mPendingHeading;
+
+    private long mPublishedCount;
+    private long mSuppressedCount;
+
+    CompassHeadingPublisher(int maxUpdatesPerSecond, float thresholdDegrees) {
+        mMinIntervalMs = maxUpdatesPerSecond > 0 ? 1000 / maxUpdatesPerSecond : 0;
+        mThresholdDegrees = thresholdDegrees;
+    }
+
+    /** Forgets the last published heading so the next one always goes through. */
+    void reset() {
+        mHasPublished = false;
+        mHasPending = false;
+    }
+
+    /**
+     * Returns whether {@code degrees} should be published at {@code now}, and records it as
+     * the last published heading if so.
+     */
+    boolean shouldPublish(float degrees, long now) {
+        if (mHasPublished && now - mLastPublishTime < mMinIntervalMs) {
+            // Too soon, keep the newest heading for when the interval is over
+            mHasPending = true;
+            mPendingHeading = degrees;
+            mSuppressedCount++;
+            return false;
+        }
+        mHasPending = false;
+        if (mHasPublished && angularDistance(degrees, mLastHeading) <= mThresholdDegrees) {
+            mSuppressedCount++;
+            return false;
+        }
+        mHasPublished = true;
+        mLastHeading = degrees;
+        mLastPublishTime = now;
+        mPublishedCount++;
+        return true;
+    }
+
+    /** Returns the time until the held back heading may be published, or -1 if there is none. */
+    long getPendingDelay(long now) {
+        if (!mHasPending) return -1;
+        return Math.max(0, mLastPublishTime + mMinIntervalMs - now);
+    }
+
+    /** Like {@link #shouldPublish}, for the heading held back by the interval, if any. */
+    boolean publishPending(long now) {
+        return mHasPending && shouldPublish(mPendingHeading, now);
+    }
+
+    float getLastHeading() {
+        return mLastHeading;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  CompassHeadingPublisher:");
+        pw.println("    minIntervalMs=" + mMinIntervalMs
+                + " thresholdDegrees=" + mThresholdDegrees);
+        pw.println("    published=" + mPublishedCount + " suppressed=" + mSuppressedCount);
+    }
+
+    /** Shortest distance between two headings, in degrees within [0, 180]. */
+    static float angularDistance(float a, float b) {
+        final float delta = Math.abs(a - b) % 360;
+        return delta > 180 ? 360 - delta : delta;
+    }
+}
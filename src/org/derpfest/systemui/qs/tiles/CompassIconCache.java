@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import com.android.systemui.plugins.qs.QSTile.Icon;
+import com.android.systemui.qs.tileimpl.QSTileImpl.DrawableIcon;
+import com.android.systemui.res.R;
+
+/**
+ * Bounded cache of pre-rendered compass icons for {@link CompassTile}.
+ *
+ * Headings are quantized into buckets of a fixed width and each bucket is rendered once,
+ * so steady-state updates hand out an existing icon instead of rasterizing a new bitmap.
+ * Cached icons are dropped whenever the display density or UI mode changes.
+ */
+final class CompassIconCache {
+
+    private final Context mContext;
+    private final int mBucketDegrees;
+    private final Integer[] mKeys;
+    private final LruCache<Integer, Icon> mIcons;
+
+    private Drawable mBaseDrawable;
+    private int mDensityDpi = Configuration.DENSITY_DPI_UNDEFINED;
+    private int mUiMode = Configuration.UI_MODE_TYPE_UNDEFINED;
+
+    CompassIconCache(Context context) {
+        this(context,
+                context.getResources().getInteger(R.integer.config_compassIconCacheSize),
+                context.getResources().getInteger(R.integer.config_compassIconBucketDegrees));
+    }
+
+    CompassIconCache(Context context, int maxSize, int bucketDegrees) {
+        mContext = context;
+        mBucketDegrees = Math.max(1, Math.min(bucketDegrees, 360));
+        // Keys are boxed once so lookups don't allocate
+        mKeys = new Integer[(360 + mBucketDegrees - 1) / mBucketDegrees];
+        for (int i = 0; i < mKeys.length; i++) {
+            mKeys[i] = i;
+        }
+        mIcons = new LruCache<>(Math.max(1, maxSize));
+    }
+
+    /** Returns the icon rotated to the bucket containing {@code degrees}. */
+    synchronized Icon get(float degrees) {
+        checkConfiguration();
+
+        final int bucket = Math.round(degrees / mBucketDegrees) % mKeys.length;
+        final Integer key = mKeys[bucket < 0 ? bucket + mKeys.length : bucket];
+        Icon icon = mIcons.get(key);
+        if (icon == null) {
+            icon = new DrawableIcon(render(key * mBucketDegrees));
+            mIcons.put(key, icon);
+        }
+        return icon;
+    }
+
+    synchronized void clear() {
+        mIcons.evictAll();
+        mBaseDrawable = null;
+    }
+
+    private void checkConfiguration() {
+        final Configuration config = mContext.getResources().getConfiguration();
+        if (config.densityDpi != mDensityDpi || config.uiMode != mUiMode) {
+            clear();
+            mDensityDpi = config.densityDpi;
+            mUiMode = config.uiMode;
+        }
+    }
+
+    private Drawable render(float degrees) {
+        if (mBaseDrawable == null) {
+            mBaseDrawable = mContext.getDrawable(R.drawable.ic_qs_compass);
+        }
+        final int width = mBaseDrawable.getIntrinsicWidth();
+        final int height = mBaseDrawable.getIntrinsicHeight();
+
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        canvas.rotate(degrees, width / 2f, height / 2f);
+        mBaseDrawable.setBounds(0, 0, width, height);
+        mBaseDrawable.draw(canvas);
+        return new BitmapDrawable(mContext.getResources(), bitmap);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.content.Context;
+import android.os.LocaleList;
+
+import com.android.systemui.res.R;
+
+/**
+ * Preformatted "123° SE" labels for {@link CompassTile}, one per whole degree.
+ *
+ * Labels are formatted on first use and kept until the configured locales change.
+ */
+final class CompassLabelTable {
+
+    private final Context mContext;
+    private final String[] mLabels = new String[360];
+
+    private LocaleList mLocales;
+    private String[] mCardinalDirections;
+
+    CompassLabelTable(Context context) {
+        mContext = context;
+    }
+
+    synchronized String get(int degree) {
+        final LocaleList locales = mContext.getResources().getConfiguration().getLocales();
+        if (!locales.equals(mLocales)) {
+            mLocales = locales;
+            mCardinalDirections = mContext.getResources().getStringArray(
+                    R.array.cardinal_directions);
+            for (int i = 0; i < mLabels.length; i++) {
+                mLabels[i] = null;
+            }
+        }
+
+        final int index = ((degree % 360) + 360) % 360;
+        String label = mLabels[index];
+        if (label == null) {
+            label = format(index);
+            mLabels[index] = label;
+        }
+        return label;
+    }
+
+    private String format(int degree) {
+        int cardinalDirectionIndex = (int) (Math.floor(((degree - 22.5) % 360) / 45) + 1) % 8;
+        return mContext.getString(R.string.quick_settings_compass_value, (float) degree,
+                mCardinalDirections[cardinalDirectionIndex]);
+    }
+}
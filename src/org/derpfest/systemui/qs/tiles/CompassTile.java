@@ -20,20 +20,19 @@ package org.derpfest.systemui.qs.tiles;
 
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.service.quicksettings.Tile;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
@@ -50,24 +49,41 @@ import com.android.systemui.qs.logging.QSLogger;
 import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.res.R;
 
+import java.io.PrintWriter;
+
 import javax.inject.Inject;
 
-public class CompassTile extends QSTileImpl<BooleanState> implements SensorEventListener {
+public class CompassTile extends QSTileImpl<BooleanState> implements SensorEventListener,
+        CompassHeadingEngine.Callback {
 
     public static final String TILE_SPEC = "compass";
 
-    private final static float ALPHA = 0.97f;
-
-    private boolean mActive = false;
+    private volatile boolean mActive = false;
 
     private SensorManager mSensorManager;
+    private Sensor mRotationVectorSensor;
     private Sensor mAccelerationSensor;
     private Sensor mGeomagneticFieldSensor;
 
-    private float[] mAcceleration;
-    private float[] mGeomagnetic;
+    private final CompassHeadingEngine mHeadingEngine = new CompassHeadingEngine(this);
+    private final CompassIconCache mIconCache;
+    private final CompassLabelTable mLabelTable;
+    private final CompassHeadingPublisher mHeadingPublisher;
+    private volatile int mHeading;
+    private volatile boolean mHasHeading;
+
+    private final int mMaxReportLatencyUs;
+    private volatile boolean mListeningSensors;
 
-    private boolean mListeningSensors;
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+
+    private final Runnable mPublishPending = () -> {
+        if (!mActive || !mListeningSensors) return;
+        if (mHeadingPublisher.publishPending(SystemClock.uptimeMillis())) {
+            publishHeading(Math.round(mHeadingPublisher.getLastHeading()));
+        }
+    };
 
     @Inject
     public CompassTile(QSHost host,
@@ -83,9 +99,21 @@ public class CompassTile extends QSTileImpl<BooleanState> implements SensorEvent
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
                 statusBarStateController, activityStarter, qsLogger);
 
+        mIconCache = new CompassIconCache(mContext);
+        mLabelTable = new CompassLabelTable(mContext);
+        mHeadingPublisher = new CompassHeadingPublisher(
+                mContext.getResources().getInteger(R.integer.config_compassMaxUpdatesPerSecond),
+                mContext.getResources().getFloat(R.dimen.config_compassHeadingThresholdDegrees));
         mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+        mRotationVectorSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        if (mRotationVectorSensor == null) {
+            mRotationVectorSensor = mSensorManager.getDefaultSensor(
+                    Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR);
+        }
         mAccelerationSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
         mGeomagneticFieldSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        mMaxReportLatencyUs = mContext.getResources().getInteger(
+                R.integer.config_compassMaxReportLatencyMs) * 1000;
     }
 
     @Override
@@ -100,6 +128,12 @@ public class CompassTile extends QSTileImpl<BooleanState> implements SensorEvent
         super.handleDestroy();
         setListeningSensors(false);
         mSensorManager = null;
+        mIconCache.clear();
+        if (mSensorThread != null) {
+            mSensorThread.quitSafely();
+            mSensorThread = null;
+            mSensorHandler = null;
+        }
     }
 
     @Override
@@ -123,58 +157,59 @@ public class CompassTile extends QSTileImpl<BooleanState> implements SensorEvent
         if (listening == mListeningSensors) return;
         mListeningSensors = listening;
         if (mListeningSensors) {
-            mSensorManager.registerListener(
-                    this, mAccelerationSensor, SensorManager.SENSOR_DELAY_GAME);
-            mSensorManager.registerListener(
-                    this, mGeomagneticFieldSensor, SensorManager.SENSOR_DELAY_GAME);
+            mHasHeading = false;
+            // The engine and publisher are only touched from the sensor thread. The reset is
+            // queued ahead of any event delivered for the new registration.
+            final Handler sensorHandler = getSensorHandler();
+            sensorHandler.post(() -> {
+                mHeadingEngine.reset();
+                mHeadingPublisher.reset();
+            });
+            if (mRotationVectorSensor != null) {
+                // Let the sensor hub fuse and batch the samples for us
+                mSensorManager.registerListener(this, mRotationVectorSensor,
+                        SensorManager.SENSOR_DELAY_GAME, mMaxReportLatencyUs, sensorHandler);
+            } else {
+                mSensorManager.registerListener(this, mAccelerationSensor,
+                        SensorManager.SENSOR_DELAY_GAME, sensorHandler);
+                mSensorManager.registerListener(this, mGeomagneticFieldSensor,
+                        SensorManager.SENSOR_DELAY_GAME, sensorHandler);
+            }
         } else {
             mSensorManager.unregisterListener(this);
+            if (mSensorHandler != null) {
+                mSensorHandler.removeCallbacks(mPublishPending);
+            }
         }
     }
 
+    /** Returns the handler sensor events are delivered on, starting its thread if needed. */
+    @VisibleForTesting
+    Handler getSensorHandler() {
+        if (mSensorHandler == null) {
+            mSensorThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mSensorThread.start();
+            mSensorHandler = new Handler(mSensorThread.getLooper());
+        }
+        return mSensorHandler;
+    }
+
     @Override
     public CharSequence getTileLabel() {
         return mContext.getString(R.string.quick_settings_compass_label);
     }
 
-    private Drawable rotateDrawable(Drawable drawable, float degrees) {
-        // Convert drawable to bitmap
-        Bitmap bitmap = drawableToBitmap(drawable);
-
-        // Create matrix for rotation
-        Matrix matrix = new Matrix();
-        matrix.postRotate(degrees);
-
-        // Create rotated bitmap
-        Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-
-        // Convert rotated bitmap back to drawable
-        return new BitmapDrawable(mContext.getResources(), rotatedBitmap);
-    }
-
-    private Bitmap drawableToBitmap(Drawable drawable) {
-        if (drawable instanceof BitmapDrawable) {
-            return ((BitmapDrawable) drawable).getBitmap();
-        }
-
-        // If the drawable is not a BitmapDrawable, create a new bitmap and draw the drawable on a canvas
-        Bitmap bitmap = Bitmap.createBitmap(drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
-        drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-        drawable.draw(canvas);
-        return bitmap;
-    }
-
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
-        final Float degrees = arg == null ? 0 : (Float) arg;
+        final boolean hasHeading = mActive && mHasHeading;
+        final int degrees = hasHeading ? mHeading : 0;
 
         state.value = mActive;
 
         if (state.value) {
             state.state = Tile.STATE_ACTIVE;
-            if (arg != null) {
-                state.label = formatValueWithCardinalDirection(degrees);
+            if (hasHeading) {
+                state.label = mLabelTable.get(degrees);
             } else {
                 state.label = mContext.getString(R.string.quick_settings_compass_init);
             }
@@ -182,8 +217,7 @@ public class CompassTile extends QSTileImpl<BooleanState> implements SensorEvent
             state.label = mContext.getString(R.string.quick_settings_compass_label);
             state.state = Tile.STATE_INACTIVE;
         }
-        state.icon = new DrawableIcon(rotateDrawable(
-                mContext.getResources().getDrawable(R.drawable.ic_qs_compass), degrees));
+        state.icon = mIconCache.get(degrees);
     }
 
     @Override
@@ -193,8 +227,8 @@ public class CompassTile extends QSTileImpl<BooleanState> implements SensorEvent
 
     @Override
     public boolean isAvailable() {
-        return mSensorManager != null && mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null
-                && mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD) != null;
+        return mSensorManager != null && (mRotationVectorSensor != null
+                || (mAccelerationSensor != null && mGeomagneticFieldSensor != null));
     }
 
     @Override
@@ -205,58 +239,42 @@ public class CompassTile extends QSTileImpl<BooleanState> implements SensorEvent
         }
     }
 
-    private String formatValueWithCardinalDirection(float degree) {
-        int cardinalDirectionIndex = (int) (Math.floor(((degree - 22.5) % 360) / 45) + 1) % 8;
-        String[] cardinalDirections = mContext.getResources().getStringArray(
-                R.array.cardinal_directions);
-
-        return mContext.getString(R.string.quick_settings_compass_value, degree,
-                cardinalDirections[cardinalDirectionIndex]);
-    }
-
     @Override
     public void onSensorChanged(SensorEvent event) {
-        float[] values;
-        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-            if (mAcceleration == null) {
-                mAcceleration = event.values.clone();
-            }
-
-            values = mAcceleration;
-        } else {
-            // Magnetic field sensor
-            if (mGeomagnetic == null) {
-                mGeomagnetic = event.values.clone();
-            }
-
-            values = mGeomagnetic;
-        }
-
-        for (int i = 0; i < 3; i++) {
-            values[i] = ALPHA * values[i] + (1 - ALPHA) * event.values[i];
-        }
+        mHeadingEngine.onSensorChanged(event);
+    }
 
-        if (!mActive || !mListeningSensors || mAcceleration == null || mGeomagnetic == null) {
+    @Override
+    public void onHeadingChanged(float degrees) {
+        if (!mActive || !mListeningSensors) {
             // Nothing to do at this moment
             return;
         }
-
-        float R[] = new float[9];
-        float I[] = new float[9];
-        if (!SensorManager.getRotationMatrix(R, I, mAcceleration, mGeomagnetic)) {
-            // Rotation matrix couldn't be calculated
+        // Only whole degrees are shown, so only those are handed over to the tile
+        final int heading = Math.round(degrees) % 360;
+        final long now = SystemClock.uptimeMillis();
+        if (mHeadingPublisher.shouldPublish(heading, now)) {
+            mSensorHandler.removeCallbacks(mPublishPending);
+            publishHeading(heading);
             return;
         }
+        // A batch arrives as a burst, make sure its newest heading is shown in the end
+        final long delay = mHeadingPublisher.getPendingDelay(now);
+        if (delay >= 0 && !mSensorHandler.hasCallbacks(mPublishPending)) {
+            mSensorHandler.postDelayed(mPublishPending, delay);
+        }
+    }
 
-        // Get the current orientation
-        float[] orientation = new float[3];
-        SensorManager.getOrientation(R, orientation);
-
-        // Convert azimuth to degrees
-        Float newDegree = Float.valueOf((float) Math.toDegrees(orientation[0]));
-        newDegree = (newDegree + 360) % 360;
+    private void publishHeading(int heading) {
+        mHeading = heading;
+        mHasHeading = true;
+        refreshState();
+    }
 
-        refreshState(newDegree);
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        mHeadingPublisher.dump(pw);
     }
 
     @Override
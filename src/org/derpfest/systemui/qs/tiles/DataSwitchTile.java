@@ -19,17 +19,18 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.Settings;
-import android.telephony.PhoneStateListener;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import androidx.annotation.Nullable;
 
@@ -41,6 +42,7 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.systemui.animation.Expandable;
 import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.dagger.qualifiers.UiBackground;
 import com.android.systemui.plugins.ActivityStarter;
 import com.android.systemui.plugins.FalsingManager;
 import com.android.systemui.plugins.qs.QSTile.BooleanState;
@@ -54,6 +56,7 @@ import com.android.systemui.qs.tileimpl.QSTileImpl.ResourceIcon;
 import com.android.systemui.res.R;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
@@ -61,26 +64,52 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
 
     public static final String TILE_SPEC = "dataswitch";
 
-    private boolean mCanSwitch = true;
-    private boolean mRegistered = false;
-    private int mSimCount = 0;
+    private volatile int mCallState = TelephonyManager.CALL_STATE_IDLE;
+    private volatile SimSnapshot mSimSnapshot = new SimSnapshot(0, true,
+            SubscriptionManager.INVALID_SUBSCRIPTION_ID, null);
+
+    // Taps are ignored while a switch is in flight and shortly after one was requested
+    private static final long SWITCH_DEBOUNCE_MS = 500;
+    // Give up on showing the optimistic state if telephony never confirms the switch
+    private static final long SWITCH_TIMEOUT_MS = 5000;
+
+    private long mSwitchRequestTime = -1;
+    private volatile boolean mSwitchPending;
+    private volatile boolean mSwitchTargetSimZero;
+    private final Runnable mSwitchTimeout = () -> {
+        Log.w(TAG, "Data switch was not confirmed within " + SWITCH_TIMEOUT_MS + "ms");
+        mSwitchPending = false;
+        refreshState();
+    };
+    private final Executor mSwitchExecutor;
     BroadcastReceiver mSimReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
             Log.d(TAG, "mSimReceiver:onReceive");
-            refreshState();
+            updateSimSnapshot();
         }
     };
-    private final MyCallStateListener mPhoneStateListener;
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+        @Override
+        public void onSubscriptionsChanged() {
+            updateSubscriptions();
+            updateSimSnapshot();
+        }
+    };
+    private final CallStateCallback mCallStateCallback = new CallStateCallback();
     private final SubscriptionManager mSubscriptionManager;
     private final TelephonyManager mTelephonyManager;
     private final PanelInteractor mPanelInteractor;
+    private final int mPhoneCount;
 
-    class MyCallStateListener extends PhoneStateListener {
-        MyCallStateListener() {
-        }
+    // Active subscriptions by subId, replaced as a whole whenever subscriptions change
+    private volatile SparseArray<SubscriptionEntry> mSubscriptions = new SparseArray<>();
 
-        public void onCallStateChanged(int state, String arg1) {
-            mCanSwitch = mTelephonyManager.getCallState() == 0;
+    private final class CallStateCallback extends TelephonyCallback
+            implements TelephonyCallback.CallStateListener {
+        @Override
+        public void onCallStateChanged(int state) {
+            mCallState = state;
             refreshState();
         }
     }
@@ -96,21 +125,40 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
             QSLogger qsLogger,
-            PanelInteractor panelInteractor
+            PanelInteractor panelInteractor,
+            @Background Executor bgExecutor,
+            @UiBackground Executor uiBgExecutor
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
                 statusBarStateController, activityStarter, qsLogger);
         mSubscriptionManager = SubscriptionManager.from(host.getContext());
         mTelephonyManager = TelephonyManager.from(host.getContext());
-        mPhoneStateListener = new MyCallStateListener();
         mPanelInteractor = panelInteractor;
+        mSwitchExecutor = uiBgExecutor;
+        mPhoneCount = mTelephonyManager.getPhoneCount();
+        Log.d(TAG, "phoneCount: " + mPhoneCount);
+
+        // These change rarely, stay registered rather than re-register on every panel open
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED);
+        mContext.registerReceiver(mSimReceiver, filter, null, mHandler);
+        mSubscriptionManager.addOnSubscriptionsChangedListener(
+                mHandler::post, mSubscriptionsListener);
+        mTelephonyManager.registerTelephonyCallback(bgExecutor, mCallStateCallback);
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        mContext.unregisterReceiver(mSimReceiver);
+        mSubscriptionManager.removeOnSubscriptionsChangedListener(mSubscriptionsListener);
+        mTelephonyManager.unregisterTelephonyCallback(mCallStateCallback);
     }
 
     @Override
     public boolean isAvailable() {
-        int count = TelephonyManager.getDefault().getPhoneCount();
-        Log.d(TAG, "phoneCount: " + count);
-        return count >= 2;
+        return mPhoneCount >= 2;
     }
 
     @Override
@@ -120,58 +168,91 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
 
     @Override
     public void handleSetListening(boolean listening) {
-        if (listening) {
-            if (!mRegistered) {
-                IntentFilter filter = new IntentFilter();
-                filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
-                mContext.registerReceiver(mSimReceiver, filter);
-                mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
-                mRegistered = true;
+    }
+
+    /**
+     * Refreshes the subscription cache, keeping the per-subscription TelephonyManager of
+     * subscriptions that are still active.
+     */
+    private void updateSubscriptions() {
+        final SparseArray<SubscriptionEntry> previous = mSubscriptions;
+        final SparseArray<SubscriptionEntry> subscriptions = new SparseArray<>();
+        List<SubscriptionInfo> subInfoList =
+                mSubscriptionManager.getActiveSubscriptionInfoList(true);
+        if (subInfoList != null) {
+            for (SubscriptionInfo subInfo : subInfoList) {
+                final int subId = subInfo.getSubscriptionId();
+                final SubscriptionEntry old = previous.get(subId);
+                subscriptions.put(subId, new SubscriptionEntry(subInfo,
+                        old != null
+                                ? old.telephonyManager
+                                : mTelephonyManager.createForSubscriptionId(subId)));
             }
-            refreshState();
-        } else if (mRegistered) {
-            mContext.unregisterReceiver(mSimReceiver);
-            mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
-            mRegistered = false;
         }
+        mSubscriptions = subscriptions;
     }
 
-    private void updateSimCount() {
+    /**
+     * Re-reads SIM and subscription state. Only called when telephony reports a change, so
+     * that rendering the tile never has to.
+     */
+    private void updateSimSnapshot() {
         String simState = SystemProperties.get("gsm.sim.state");
-        Log.d(TAG, "DataSwitchTile:updateSimCount:simState=" + simState);
-        mSimCount = 0;
+        int simCount = 0;
         try {
             String[] sims = TextUtils.split(simState, ",");
             for (String sim : sims) {
                 if (!sim.isEmpty()
                         && !sim.equalsIgnoreCase(IccCardConstants.INTENT_VALUE_ICC_ABSENT)
                         && !sim.equalsIgnoreCase(IccCardConstants.INTENT_VALUE_ICC_NOT_READY)) {
-                    mSimCount++;
+                    simCount++;
                 }
             }
         } catch (Exception e) {
             Log.e(TAG, "Error to parse sim state");
         }
-        Log.d(TAG, "DataSwitchTile:updateSimCount:mSimCount=" + mSimCount);
+        int defaultSubId = mSubscriptionManager.getDefaultDataSubscriptionId();
+        int defaultPhoneId = mSubscriptionManager.getPhoneId(defaultSubId);
+        mSimSnapshot = new SimSnapshot(simCount, defaultPhoneId == 0, defaultSubId,
+                simCount == 2 ? getActiveSlotName(defaultSubId) : null);
+        Log.d(TAG, "updateSimSnapshot:simState=" + simState + " simCount=" + simCount
+                + " defaultPhoneId=" + defaultPhoneId);
+        if (mSwitchPending && mSwitchTargetSimZero == (defaultPhoneId == 0)) {
+            mHandler.removeCallbacks(mSwitchTimeout);
+            mSwitchPending = false;
+            Log.d(TAG, "Data switch took "
+                    + (SystemClock.elapsedRealtime() - mSwitchRequestTime) + "ms");
+        }
+        refreshState();
     }
 
     @Override
     protected void handleClick(@Nullable Expandable expandable) {
-        if (!mCanSwitch) {
-            Log.d(TAG, "Call state=" + mTelephonyManager.getCallState());
-        } else if (mSimCount == 0) {
+        if (!canSwitch()) {
+            Log.d(TAG, "Call state=" + mCallState);
+        } else if (mSimSnapshot.simCount == 0) {
             Log.d(TAG, "handleClick:no sim card");
-        } else if (mSimCount == 1) {
+        } else if (mSimSnapshot.simCount == 1) {
             Log.d(TAG, "handleClick:only one sim card");
+        } else if (mSwitchPending || (mSwitchRequestTime != -1
+                && SystemClock.elapsedRealtime() - mSwitchRequestTime < SWITCH_DEBOUNCE_MS)) {
+            Log.d(TAG, "handleClick:switch already in progress");
         } else {
-            AsyncTask.execute(() -> {
-                toggleMobileDataEnabled();
-                refreshState();
-            });
+            final SimSnapshot sims = mSimSnapshot;
+            mSwitchRequestTime = SystemClock.elapsedRealtime();
+            mSwitchPending = true;
+            mSwitchTargetSimZero = !sims.activeSimZero;
+            mHandler.postDelayed(mSwitchTimeout, SWITCH_TIMEOUT_MS);
+            refreshState();
+            mSwitchExecutor.execute(() -> switchDefaultData(sims.defaultDataSubId));
             mPanelInteractor.collapsePanels();
         }
     }
 
+    private boolean canSwitch() {
+        return mCallState == TelephonyManager.CALL_STATE_IDLE;
+    }
+
     @Override
     public Intent getLongClickIntent() {
         return new Intent(Settings.ACTION_NETWORK_OPERATOR_SETTINGS);
@@ -184,17 +265,16 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
 
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
+        final SimSnapshot sims = mSimSnapshot;
         boolean activeSIMZero;
-        if (arg == null) {
-            int defaultPhoneId = mSubscriptionManager.getPhoneId(
-                        mSubscriptionManager.getDefaultDataSubscriptionId());
-            Log.d(TAG, "default data phone id=" + defaultPhoneId);
-            activeSIMZero = defaultPhoneId == 0;
+        if (mSwitchPending) {
+            activeSIMZero = mSwitchTargetSimZero;
+        } else if (arg == null) {
+            activeSIMZero = sims.activeSimZero;
         } else {
             activeSIMZero = (Boolean) arg;
         }
-        updateSimCount();
-        switch (mSimCount) {
+        switch (sims.simCount) {
             case 0:
                 state.icon = ResourceIcon.get(R.drawable.ic_qs_data_switch_0);
                 state.value = false;
@@ -212,7 +292,9 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
                         ? R.drawable.ic_qs_data_switch_1
                         : R.drawable.ic_qs_data_switch_2);
                 state.value = true;
-                state.secondaryLabel = getActiveSlotName();
+                state.secondaryLabel = mSwitchPending
+                        ? mContext.getString(R.string.qs_data_switch_switching)
+                        : sims.activeSlotName;
                 break;
             default:
                 state.icon = ResourceIcon.get(R.drawable.ic_qs_data_switch_1);
@@ -220,11 +302,10 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
                 state.secondaryLabel = mContext.getString(R.string.tile_unavailable);
                 break;
         }
-        if (mSimCount < 2) {
+        if (sims.simCount < 2) {
             state.state = 0;
-        } else if (!mCanSwitch) {
+        } else if (!canSwitch()) {
             state.state = 0;
-            Log.d(TAG, "call state isn't idle, set to unavailable.");
         } else {
             state.state = state.value ? 2 : 1;
         }
@@ -238,46 +319,69 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
     }
 
     /**
-     * Set whether to enable data for {@code subId}, also whether to disable data for other
-     * subscription
+     * Moves the default data subscription away from {@code currentSubId} to the other SIM.
+     * Runs on a single background thread, so switches never overlap.
      */
-    private void toggleMobileDataEnabled() {
-        TelephonyManager telephonyManager;
-        boolean dataEnabled = false;
-        boolean foundActive = false;
-        List<SubscriptionInfo> subInfoList =
-                mSubscriptionManager.getActiveSubscriptionInfoList(true);
-        if (subInfoList != null) {
-            for (SubscriptionInfo subInfo : subInfoList) {
-                telephonyManager =
-                    mTelephonyManager.createForSubscriptionId(subInfo.getSubscriptionId());
-                dataEnabled = telephonyManager.getDataEnabled();
-                if (!subInfo.isOpportunistic() || !dataEnabled) {
-                    telephonyManager.setDataEnabled(!dataEnabled && !foundActive);
-                    // Indicate we found sim with active data, disable data on remaining sim.
-                    if (!foundActive) foundActive = !dataEnabled;
-                }
-                Log.d(TAG, "Changed subID " + subInfo.getSubscriptionId() + " to "
-                    + !dataEnabled);
+    private void switchDefaultData(int currentSubId) {
+        SubscriptionEntry target = null;
+        final SparseArray<SubscriptionEntry> subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.size(); i++) {
+            final SubscriptionEntry entry = subscriptions.valueAt(i);
+            if (!entry.info.isOpportunistic() && subscriptions.keyAt(i) != currentSubId) {
+                target = entry;
+                break;
             }
         }
+        if (target == null) {
+            Log.w(TAG, "No other subscription to switch data to");
+            mHandler.post(() -> {
+                mHandler.removeCallbacks(mSwitchTimeout);
+                mSwitchPending = false;
+                refreshState();
+            });
+            return;
+        }
+        // Data follows the default data subscription, the previous one stops on its own
+        final int targetSubId = target.info.getSubscriptionId();
+        mSubscriptionManager.setDefaultDataSubId(targetSubId);
+        target.telephonyManager.setDataEnabled(true);
+        Log.d(TAG, "Switched default data from subID " + currentSubId + " to " + targetSubId);
     }
 
-    private String getActiveSlotName() {
-        TelephonyManager telephonyManager;
-        String mInitialState = mContext.getString(R.string.tile_unavailable);
-        List<SubscriptionInfo> subInfoList =
-                mSubscriptionManager.getActiveSubscriptionInfoList(true);
-        if (subInfoList != null) {
-            for (SubscriptionInfo subInfo : subInfoList) {
-                telephonyManager =
-                        mTelephonyManager.createForSubscriptionId(subInfo.getSubscriptionId());
-                if (telephonyManager.getDataEnabled()) {
-                    // Active SIM found
-                    return subInfo.getDisplayName().toString();
-                }
-            }
+    private String getActiveSlotName(int defaultDataSubId) {
+        final SubscriptionEntry entry = mSubscriptions.get(defaultDataSubId);
+        if (entry != null) {
+            // Active SIM found
+            return entry.displayName;
+        }
+        return mContext.getString(R.string.tile_unavailable);
+    }
+
+    private static final class SubscriptionEntry {
+        final SubscriptionInfo info;
+        final String displayName;
+        final TelephonyManager telephonyManager;
+
+        SubscriptionEntry(SubscriptionInfo info, TelephonyManager telephonyManager) {
+            this.info = info;
+            this.displayName = String.valueOf(info.getDisplayName());
+            this.telephonyManager = telephonyManager;
+        }
+    }
+
+    /** SIM and subscription state the tile is rendered from. */
+    private static final class SimSnapshot {
+        final int simCount;
+        final boolean activeSimZero;
+        final int defaultDataSubId;
+        final String activeSlotName;
+
+        SimSnapshot(int simCount, boolean activeSimZero, int defaultDataSubId,
+                String activeSlotName) {
+            this.simCount = simCount;
+            this.activeSimZero = activeSimZero;
+            this.defaultDataSubId = defaultDataSubId;
+            this.activeSlotName = activeSlotName;
         }
-        return mInitialState;
     }
 }
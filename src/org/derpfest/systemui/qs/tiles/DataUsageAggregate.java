@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.app.usage.NetworkStats;
+import android.app.usage.NetworkStatsManager;
+import android.content.Context;
+import android.net.NetworkTemplate;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.settingslib.net.DataUsageUtils;
+import com.android.systemui.res.R;
+
+import java.io.PrintWriter;
+import java.util.Calendar;
+import java.util.concurrent.Executor;
+
+/**
+ * Today's mobile data usage of the default data subscription, for {@link CellularTile}.
+ *
+ * NetworkStats is queried on a background executor and at most once per refresh interval.
+ * Usage of hours that are over is summed up once and kept, so a refresh only has to query
+ * the time since the last settled hour. The tile reads the formatted result without any I/O.
+ */
+final class DataUsageAggregate {
+
+    private static final String TAG = "DataUsageAggregate";
+
+    /** Stats are recorded in buckets of an hour, aligned to the epoch. */
+    private static final long BUCKET_DURATION = DateUtils.HOUR_IN_MILLIS;
+
+    private final Context mContext;
+    private final NetworkStatsManager mStatsManager;
+    private final Executor mBgExecutor;
+    private final Handler mResultHandler;
+    private final Runnable mOnChanged;
+    private final long mMinRefreshInterval;
+
+    // Result handler thread only
+    private boolean mRefreshing;
+    private long mLastRefreshTime = -1;
+    @Nullable
+    private CharSequence mUsageText;
+    private long mUsageBytes = -1;
+
+    // Background executor only
+    private int mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    private long mDayStart;
+    private NetworkTemplate mTemplate;
+    private long mSettledEnd;
+    private long mSettledBytes;
+    private long mQueries;
+
+    DataUsageAggregate(Context context, Executor bgExecutor, Handler resultHandler,
+            Runnable onChanged) {
+        mContext = context;
+        mStatsManager = context.getSystemService(NetworkStatsManager.class);
+        mBgExecutor = bgExecutor;
+        mResultHandler = resultHandler;
+        mOnChanged = onChanged;
+        mMinRefreshInterval = context.getResources().getInteger(
+                R.integer.config_cellularDataUsageRefreshMs);
+    }
+
+    /** Returns the "1.2 GB today" label, or null if the usage is not known. */
+    @Nullable
+    CharSequence getUsageText() {
+        return mUsageText;
+    }
+
+    /** Refreshes the usage in the background, unless that was done recently. */
+    void requestRefresh() {
+        final long now = SystemClock.elapsedRealtime();
+        if (mRefreshing
+                || (mLastRefreshTime >= 0 && now - mLastRefreshTime < mMinRefreshInterval)) {
+            return;
+        }
+        mRefreshing = true;
+        mLastRefreshTime = now;
+        mBgExecutor.execute(() -> {
+            final long bytes = queryToday();
+            final CharSequence text = bytes < 0 ? null : TextUtils.expandTemplate(
+                    mContext.getText(R.string.qs_cellular_data_usage_today),
+                    Formatter.formatShortFileSize(mContext, bytes));
+            mResultHandler.post(() -> {
+                mRefreshing = false;
+                if (bytes == mUsageBytes && TextUtils.equals(text, mUsageText)) return;
+                mUsageBytes = bytes;
+                mUsageText = text;
+                mOnChanged.run();
+            });
+        });
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  DataUsageAggregate:");
+        pw.println("    usageBytes=" + mUsageBytes
+                + " minRefreshInterval=" + mMinRefreshInterval
+                + " lastRefreshTime=" + mLastRefreshTime);
+        pw.println("    settledEnd=" + mSettledEnd + " settledBytes=" + mSettledBytes
+                + " queries=" + mQueries);
+    }
+
+    private long queryToday() {
+        final int subId = SubscriptionManager.getDefaultDataSubscriptionId();
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+            mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+            return -1;
+        }
+        final long now = System.currentTimeMillis();
+        final long dayStart = getStartOfDay(now);
+        try {
+            if (subId != mSubId || dayStart != mDayStart) {
+                mSubId = subId;
+                mDayStart = dayStart;
+                mTemplate = DataUsageUtils.getMobileTemplate(mContext, subId);
+                mSettledEnd = dayStart;
+                mSettledBytes = 0;
+            }
+            // The bucket that just ended may still receive late stats, so it is only settled
+            // once the next one is over as well
+            final long settleUntil = (now / BUCKET_DURATION - 1) * BUCKET_DURATION;
+            if (settleUntil > mSettledEnd) {
+                mSettledBytes += query(mSettledEnd, settleUntil);
+                mSettledEnd = settleUntil;
+            }
+            return mSettledBytes + query(mSettledEnd, now);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to query data usage", e);
+            // Start over on the next refresh
+            mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+            return -1;
+        }
+    }
+
+    private long query(long start, long end) {
+        mQueries++;
+        final NetworkStats.Bucket bucket =
+                mStatsManager.querySummaryForDevice(mTemplate, start, end);
+        return bucket.getRxBytes() + bucket.getTxBytes();
+    }
+
+    private static long getStartOfDay(long now) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import java.io.PrintWriter;
+
+/**
+ * Count, last and average of a latency a tile measures, for its dump.
+ *
+ * Samples may be recorded on any thread.
+ */
+final class LatencyStats {
+
+    private final String mName;
+
+    private long mCount;
+    private long mLast;
+    private long mTotal;
+
+    /** @param name what is measured, like "tap to dialog" */
+    LatencyStats(String name) {
+        mName = name;
+    }
+
+    synchronized void record(long latencyMs) {
+        mCount++;
+        mLast = latencyMs;
+        mTotal += latencyMs;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  " + mName + " latency: count=" + mCount
+                + " lastMs=" + mLast
+                + " avgMs=" + (mCount > 0 ? mTotal / mCount : 0));
+    }
+}
@@ -18,14 +18,20 @@
 package org.derpfest.systemui.qs.tiles;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.Configuration;
 import android.os.Handler;
 import android.os.LocaleList;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.service.quicksettings.Tile;
+import android.text.format.DateFormat;
+import android.util.ArraySet;
+import android.view.Choreographer;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
@@ -36,6 +42,7 @@ import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
 import com.android.systemui.animation.Expandable;
 import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.dagger.qualifiers.UiBackground;
 import com.android.systemui.plugins.ActivityStarter;
 import com.android.systemui.plugins.FalsingManager;
 import com.android.systemui.plugins.qs.QSTile;
@@ -48,7 +55,9 @@ import com.android.systemui.qs.pipeline.domain.interactor.PanelInteractor;
 import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.res.R;
 
+import java.io.PrintWriter;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
@@ -57,17 +66,32 @@ public class LocaleTile extends QSTileImpl<State> {
 
     public static final String TILE_SPEC = "locale";
 
-    private boolean mListening;
-
+    // The configured locales, and for each of them the list with it moved to the front
     private LocaleList mLocaleList;
+    private LocaleList[] mRotations;
+    private String[] mDisplayNames;
 
-    // If not null: update pending
-    private Locale currentLocaleBackup;
+    // Index of the selected locale in mLocaleList. If not 0: update pending
+    private int mCursor;
 
     // Allow multiple clicks to find the desired locale without immediately applying
     private static final int TOGGLE_DELAY = 800;
 
+    // Give up on measuring a switch that did not land within this time
+    private static final long FIRST_FRAME_TIMEOUT = 10 * 1000;
+
     private final PanelInteractor mPanelInteractor;
+    private final Executor mUiBgExecutor;
+
+    // ICU caches are process wide, so each locale is only warmed once. UI background
+    // executor only.
+    private final ArraySet<Locale> mPrewarmedLocales = new ArraySet<>();
+
+    private long mLastTapTime;
+    private volatile long mApplyTapTime;
+    // Main thread only
+    private FirstFrameWatcher mFirstFrameWatcher;
+    private final LatencyStats mSwitchLatency = new LatencyStats("tap to first frame");
 
     @Inject
     public LocaleTile(
@@ -80,12 +104,24 @@ public class LocaleTile extends QSTileImpl<State> {
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
             QSLogger qsLogger,
-            PanelInteractor panelInteractor
+            PanelInteractor panelInteractor,
+            @UiBackground Executor uiBgExecutor
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
                 statusBarStateController, activityStarter, qsLogger);
         mPanelInteractor = panelInteractor;
+        mUiBgExecutor = uiBgExecutor;
         updateLocaleList();
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiver(mReceiver, filter, null, mHandler,
+                Context.RECEIVER_NOT_EXPORTED);
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        mContext.unregisterReceiver(mReceiver);
+        mUiHandler.post(this::stopWatchingFirstFrame);
     }
 
     @Override
@@ -106,14 +142,13 @@ public class LocaleTile extends QSTileImpl<State> {
     }
 
     private void toggleLocale() {
-        if (currentLocaleBackup == null) {
-            currentLocaleBackup = mLocaleList.get(0);
-        }
-        Locale[] newLocales = new Locale[mLocaleList.size()];
-        for (int i = 0; i < newLocales.length; i++) {
-            newLocales[i] = mLocaleList.get((i+1)%newLocales.length);
+        mCursor = (mCursor + 1) % mRotations.length;
+        mLastTapTime = SystemClock.uptimeMillis();
+        if (mCursor != 0) {
+            // Back at the current locales nothing will be applied
+            final Locale target = mRotations[mCursor].get(0);
+            mUiBgExecutor.execute(() -> prewarmLocale(target));
         }
-        mLocaleList = new LocaleList(newLocales);
         mHandler.removeCallbacks(applyLocale);
         mHandler.postDelayed(applyLocale, TOGGLE_DELAY);
         refreshState();
@@ -122,14 +157,77 @@ public class LocaleTile extends QSTileImpl<State> {
     private Runnable applyLocale = new Runnable() {
         @Override
         public void run() {
-            if (!mLocaleList.get(0).equals(currentLocaleBackup)) {
+            if (mCursor != 0) {
                 mPanelInteractor.collapsePanels();
-                LocalePicker.updateLocales(mLocaleList);
+                final LocaleList locales = mRotations[mCursor];
+                mApplyTapTime = mLastTapTime;
+                mUiHandler.post(() -> watchFirstFrame(locales));
+                // Pushing the configuration to every process takes a while, keep it off the
+                // tile thread
+                mUiBgExecutor.execute(() -> LocalePicker.updateLocales(locales));
+                // Show the applied locales until the broadcast confirms them
+                setLocaleList(locales);
             }
-            currentLocaleBackup = null;
         }
     };
 
+    /**
+     * Loads the ICU data SystemUI formats with first after a switch to {@code locale}, so it
+     * is already cached when the configuration change lands.
+     */
+    private void prewarmLocale(Locale locale) {
+        if (!mPrewarmedLocales.add(locale)) return;
+        locale.getDisplayLanguage(locale);
+        DateFormat.getBestDateTimePattern(locale, "EEEMMMd");
+    }
+
+    /**
+     * Records the time from the last tap to the first frame drawn in {@code locales}.
+     * Must be called on the main thread.
+     */
+    private void watchFirstFrame(LocaleList locales) {
+        stopWatchingFirstFrame();
+        mFirstFrameWatcher = new FirstFrameWatcher(locales);
+        mContext.registerComponentCallbacks(mFirstFrameWatcher);
+        mUiHandler.postDelayed(mFirstFrameWatcher, FIRST_FRAME_TIMEOUT);
+    }
+
+    /** Drops the current watcher. Main thread only. */
+    private void stopWatchingFirstFrame() {
+        if (mFirstFrameWatcher == null) return;
+        mContext.unregisterComponentCallbacks(mFirstFrameWatcher);
+        mUiHandler.removeCallbacks(mFirstFrameWatcher);
+        mFirstFrameWatcher = null;
+    }
+
+    /** Waits for the applied locales to reach SystemUI, and times out if they never do. */
+    private final class FirstFrameWatcher implements ComponentCallbacks, Runnable {
+        private final Locale mLocale;
+
+        FirstFrameWatcher(LocaleList locales) {
+            mLocale = locales.get(0);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // The system may normalize the list, the primary locale is what shows
+            if (!mLocale.equals(newConfig.getLocales().get(0))) return;
+            stopWatchingFirstFrame();
+            Choreographer.getInstance().postFrameCallback(frameTimeNanos ->
+                    mSwitchLatency.record(SystemClock.uptimeMillis() - mApplyTapTime));
+        }
+
+        @Override
+        public void onLowMemory() {
+        }
+
+        @Override
+        public void run() {
+            // Timed out, the switch failed or never reached SystemUI
+            stopWatchingFirstFrame();
+        }
+    }
+
     @Override
     public Intent getLongClickIntent() {
         return new Intent().setComponent(new ComponentName(
@@ -148,31 +246,21 @@ public class LocaleTile extends QSTileImpl<State> {
 
     @Override
     protected void handleUpdateState(State state, Object arg) {
-        state.icon = ResourceIcon.get(
-                currentLocaleBackup == null || currentLocaleBackup.equals(mLocaleList.get(0)) ?
-                        R.drawable.ic_qs_locale :
-                        R.drawable.ic_qs_locale_pending);
+        state.icon = ResourceIcon.get(mCursor == 0
+                ? R.drawable.ic_qs_locale
+                : R.drawable.ic_qs_locale_pending);
         state.label = mContext.getString(R.string.quick_settings_locale_label);
-        state.secondaryLabel = mLocaleList.get(0).getDisplayLanguage();
-    }
-
-    @Override
-    public void handleSetListening(boolean listening) {
-        if (mListening == listening) return;
-        mListening = listening;
-        if (listening) {
-            final IntentFilter filter = new IntentFilter();
-            filter.addAction(Intent.ACTION_LOCALE_CHANGED);
-            mContext.registerReceiver(mReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
-        } else {
-            mContext.unregisterReceiver(mReceiver);
-        }
+        state.secondaryLabel = mDisplayNames[mCursor];
     }
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+                mHandler.removeCallbacks(applyLocale);
+                // Display names follow the default locale, so rebuild them even if the list
+                // is the one that was just applied
+                mLocaleList = null;
                 updateLocaleList();
                 refreshState();
             }
@@ -180,12 +268,34 @@ public class LocaleTile extends QSTileImpl<State> {
     };
 
     private void updateLocaleList() {
-        if (currentLocaleBackup != null) return;
-        mLocaleList = LocaleList.getAdjustedDefault();
+        setLocaleList(LocaleList.getAdjustedDefault());
+    }
+
+    /** Rebuilds the rotations and display names, which is only needed when locales change. */
+    private void setLocaleList(LocaleList locales) {
+        mCursor = 0;
+        if (locales.equals(mLocaleList)) return;
+        mLocaleList = locales;
+        final int size = locales.size();
+        mRotations = new LocaleList[size];
+        mDisplayNames = new String[size];
+        final Locale[] rotation = new Locale[size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                rotation[j] = locales.get((i + j) % size);
+            }
+            mRotations[i] = i == 0 ? locales : new LocaleList(rotation);
+            mDisplayNames[i] = locales.get(i).getDisplayLanguage();
+        }
+    }
+
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        mSwitchLatency.dump(pw);
     }
 
     private boolean checkToggleDisabled() {
-        updateLocaleList();
         if (mLocaleList.size() <= 1) {
             handleLongClick(null);
             Toast.makeText(mContext,
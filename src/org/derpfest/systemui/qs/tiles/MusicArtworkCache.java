@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.Resources;
+import android.graphics.BlendMode;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.PorterDuff;
+import android.graphics.drawable.BitmapDrawable;
+import android.media.MediaMetadata;
+import android.os.Handler;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import com.android.systemui.qs.tileimpl.QSTileImpl.DrawableIcon;
+import com.android.systemui.res.R;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Small LRU of album art icons for {@link MusicTile}.
+ *
+ * Artwork is cropped and scaled down to the QS icon size on a background executor. Only the
+ * scaled copy is cached, and the cache is bounded by its total size in bytes.
+ */
+final class MusicArtworkCache {
+
+    private final Resources mResources;
+    private final Executor mBgExecutor;
+    private final Handler mResultHandler;
+    private final int mIconSize;
+    private final LruCache<String, ArtworkIcon> mIcons;
+
+    private String mLoadingKey;
+    private long mHits;
+    private long mMisses;
+
+    MusicArtworkCache(Context context, Executor bgExecutor, Handler resultHandler) {
+        mResources = context.getResources();
+        mBgExecutor = bgExecutor;
+        mResultHandler = resultHandler;
+        mIconSize = mResources.getDimensionPixelSize(R.dimen.qs_icon_size);
+        mIcons = new LruCache<String, ArtworkIcon>(
+                mResources.getInteger(R.integer.config_musicTileArtworkCacheKb) * 1024) {
+            @Override
+            protected int sizeOf(String key, ArtworkIcon icon) {
+                return icon.mByteCount;
+            }
+        };
+    }
+
+    /** Returns the cache key of the track described by {@code metadata}. */
+    @Nullable
+    static String getKey(@Nullable MediaMetadata metadata) {
+        if (metadata == null) return null;
+        final String mediaId = metadata.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
+        if (mediaId != null) return mediaId;
+        final String title = metadata.getString(MediaMetadata.METADATA_KEY_TITLE);
+        final String artist = metadata.getString(MediaMetadata.METADATA_KEY_ARTIST);
+        if (title == null && artist == null) return null;
+        return title + '\u0000' + artist;
+    }
+
+    @Nullable
+    static Bitmap getArtwork(@Nullable MediaMetadata metadata) {
+        if (metadata == null) return null;
+        Bitmap artwork = metadata.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART);
+        if (artwork == null) {
+            artwork = metadata.getBitmap(MediaMetadata.METADATA_KEY_ART);
+        }
+        return artwork;
+    }
+
+    @Nullable
+    DrawableIcon get(@Nullable String key) {
+        if (key == null) return null;
+        final DrawableIcon icon = mIcons.get(key);
+        if (icon != null) {
+            mHits++;
+        }
+        return icon;
+    }
+
+    /** Like {@link #get}, without counting a hit. */
+    boolean contains(String key) {
+        return mIcons.get(key) != null;
+    }
+
+    /**
+     * Scales {@code artwork} down in the background and reports {@code key} on the result
+     * handler once it is cached. The full size bitmap is not kept past the scaling.
+     */
+    void load(String key, Bitmap artwork, Consumer<String> onLoaded) {
+        if (key.equals(mLoadingKey)) return;
+        mLoadingKey = key;
+        mMisses++;
+        mBgExecutor.execute(() -> {
+            final ArtworkIcon icon = new ArtworkIcon(mResources, scale(artwork));
+            mResultHandler.post(() -> {
+                mIcons.put(key, icon);
+                if (key.equals(mLoadingKey)) {
+                    mLoadingKey = null;
+                }
+                onLoaded.accept(key);
+            });
+        });
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  MusicArtworkCache:");
+        pw.println("    entries=" + mIcons.snapshot().size()
+                + " bytes=" + mIcons.size() + "/" + mIcons.maxSize()
+                + " iconSize=" + mIconSize);
+        pw.println("    hits=" + mHits + " misses=" + mMisses);
+    }
+
+    /** Center-crops {@code source} to a square of the QS icon size. */
+    private Bitmap scale(Bitmap source) {
+        final int side = Math.min(source.getWidth(), source.getHeight());
+        final float scale = (float) mIconSize / side;
+        final Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        return Bitmap.createBitmap(source, (source.getWidth() - side) / 2,
+                (source.getHeight() - side) / 2, side, side, matrix, true);
+    }
+
+    private static final class ArtworkIcon extends DrawableIcon {
+        private final int mByteCount;
+
+        ArtworkIcon(Resources res, Bitmap bitmap) {
+            super(new UntintedBitmapDrawable(res, bitmap));
+            mByteCount = bitmap.getAllocationByteCount();
+        }
+    }
+
+    /** QS tints tile icons, which would flatten the artwork into a single color. */
+    private static final class UntintedBitmapDrawable extends BitmapDrawable {
+        UntintedBitmapDrawable(Resources res, Bitmap bitmap) {
+            super(res, bitmap);
+        }
+
+        @Override
+        public void setTintList(ColorStateList tint) {
+        }
+
+        @Override
+        public void setTintBlendMode(BlendMode blendMode) {
+        }
+
+        @Override
+        public void setTintMode(PorterDuff.Mode tintMode) {
+        }
+    }
+}
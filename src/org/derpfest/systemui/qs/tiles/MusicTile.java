@@ -19,8 +19,10 @@ package org.derpfest.systemui.qs.tiles;
 
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.media.AudioManager;
 import android.media.IAudioService;
+import android.media.MediaMetadata;
 import android.media.MediaMetadataRetriever;
 import android.media.RemoteControlClient;
 import android.media.RemoteController;
@@ -30,7 +32,6 @@ import android.os.Looper;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.service.quicksettings.Tile;
-import android.util.Log;
 import android.view.KeyEvent;
 import android.view.ViewConfiguration;
 
@@ -41,6 +42,7 @@ import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
 import com.android.systemui.animation.Expandable;
 import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.dagger.qualifiers.UiBackground;
 import com.android.systemui.plugins.ActivityStarter;
 import com.android.systemui.plugins.FalsingManager;
 import com.android.systemui.plugins.qs.QSTile.BooleanState;
@@ -54,11 +56,15 @@ import com.android.systemui.res.R;
 import javax.inject.Inject;
 
 import android.media.session.MediaController;
-import android.media.session.MediaSessionManager;
 import android.media.session.PlaybackState;
 import android.media.session.MediaSession;
 
-import java.util.List;
+import org.derpfest.systemui.media.ActiveMediaSessionRepository;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /** Quick settings tile: Music **/
 public class MusicTile extends QSTileImpl<BooleanState> {
@@ -66,7 +72,6 @@ public class MusicTile extends QSTileImpl<BooleanState> {
     private final String TAG = "MusicTile";
     private final boolean DBG = false;
     private final AudioManager mAudioManager;
-    private final MediaSessionManager mMediaSessionManager;
     private MediaController mMediaController;
     public static final String TILE_SPEC = "music";
 
@@ -77,43 +82,38 @@ public class MusicTile extends QSTileImpl<BooleanState> {
     private long mLastActiveTime = 0;
 
     private Metadata mMetadata = new Metadata();
-    private Handler mHandler = new Handler();
+    private final Executor mUiBgExecutor;
+    private final MusicArtworkCache mArtworkCache;
 
     private int mTaps = 0;
 
     private static final long LAST_ACTIVE_TIMEOUT = 1000 * 60 * 60; // 1 hour
 
-    private final MediaController.Callback mMediaCallback = new MediaController.Callback() {
-        @Override
-        public void onPlaybackStateChanged(PlaybackState state) {
-            if (state == null) return;
-            mClientIdLost = false;
-            updatePlaybackState(state.getState());
-        }
+    // Media callbacks for a track change usually arrive back to back
+    private static final long UPDATE_COALESCE_DELAY = 50;
 
-        @Override
-        public void onMetadataChanged(android.media.MediaMetadata metadata) {
-            if (metadata == null) return;
-            mMetadata.trackTitle = metadata.getString(android.media.MediaMetadata.METADATA_KEY_TITLE);
-            mMetadata.artist = metadata.getString(android.media.MediaMetadata.METADATA_KEY_ARTIST);
-            mClientIdLost = false;
-            refreshState();
-        }
+    private volatile MusicState mMusicState;
+    private boolean mUpdatePending;
+    private final Runnable mApplyUpdate = this::applyUpdate;
 
-        @Override
-        public void onSessionDestroyed() {
-            updateMediaController(null);
-        }
-    };
+    // Optimistic state is kept until the session confirms it or this much time passed
+    private static final long PENDING_COMMAND_TIMEOUT = 1000;
 
-    private final MediaSessionManager.OnActiveSessionsChangedListener mSessionListener =
-            new MediaSessionManager.OnActiveSessionsChangedListener() {
-        @Override
-        public void onActiveSessionsChanged(List<MediaController> controllers) {
-            updateMediaController(controllers != null && !controllers.isEmpty() 
-                ? controllers.get(0) : null);
-        }
-    };
+    private int mPendingPlaybackState = PlaybackState.STATE_NONE;
+    private long mPendingCommandTime;
+    // Last state reported by the session, applied if a pending command times out
+    private int mReportedPlaybackState = PlaybackState.STATE_NONE;
+    private final Runnable mPendingCommandTimeout = this::onPendingCommandTimeout;
+    private final LatencyStats mFeedbackLatency = new LatencyStats("tap to feedback");
+
+    private final ActiveMediaSessionRepository mMediaSessionRepository;
+    private final ActiveMediaSessionRepository.Callback mSessionCallback =
+            this::updateMediaController;
+    // Registered for the tile's lifetime. Only the live callback carries artwork, so tracks
+    // that start while the shade is closed would otherwise never get theirs.
+    private final ActiveMediaSessionRepository.Callback mArtworkPrefetchCallback =
+            (controller, playbackState, metadata) -> prefetchArtwork(metadata);
+    private final Consumer<String> mOnArtworkLoaded = this::onArtworkLoaded;
 
     @Inject
     public MusicTile(
@@ -125,12 +125,25 @@ public class MusicTile extends QSTileImpl<BooleanState> {
             MetricsLogger metricsLogger,
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
-            QSLogger qsLogger
+            QSLogger qsLogger,
+            ActiveMediaSessionRepository mediaSessionRepository,
+            @UiBackground Executor uiBgExecutor
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
                 statusBarStateController, activityStarter, qsLogger);
-        mMediaSessionManager = mContext.getSystemService(MediaSessionManager.class);
+        mUiBgExecutor = uiBgExecutor;
+        mArtworkCache = new MusicArtworkCache(mContext, mUiBgExecutor, mHandler);
         mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+        mMusicState = buildMusicState();
+        mMediaSessionRepository = mediaSessionRepository;
+        mMediaSessionRepository.addCallback(mArtworkPrefetchCallback);
+        mMediaSessionRepository.observe(getLifecycle(), mSessionCallback);
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        mMediaSessionRepository.removeCallback(mArtworkPrefetchCallback);
     }
 
     @Override
@@ -140,43 +153,64 @@ public class MusicTile extends QSTileImpl<BooleanState> {
 
     @Override
     public void handleSetListening(boolean listening) {
-        if (listening) {
-            try {
-                mMediaSessionManager.addOnActiveSessionsChangedListener(mSessionListener, null);
-                List<MediaController> controllers = mMediaSessionManager.getActiveSessions(null);
-                updateMediaController(controllers != null && !controllers.isEmpty() 
-                    ? controllers.get(0) : null);
-            } catch (SecurityException e) {
-                Log.d(TAG, "Security exception on media controller", e);
-            }
-        } else {
-            mMediaSessionManager.removeOnActiveSessionsChangedListener(mSessionListener);
-            updateMediaController(null);
-        }
     }
 
-    private void updateMediaController(MediaController controller) {
-        if (mMediaController != null) {
-            mMediaController.unregisterCallback(mMediaCallback);
-        }
+    private void updateMediaController(@Nullable MediaController controller,
+            @Nullable PlaybackState playbackState, @Nullable MediaMetadata metadata) {
         mMediaController = controller;
         if (mMediaController != null) {
-            mMediaController.registerCallback(mMediaCallback);
-            updatePlaybackState(mMediaController.getPlaybackState() != null 
-                ? mMediaController.getPlaybackState().getState() 
-                : PlaybackState.STATE_NONE);
-            android.media.MediaMetadata metadata = mMediaController.getMetadata();
+            mClientIdLost = false;
             if (metadata != null) {
-                mMetadata.trackTitle = metadata.getString(android.media.MediaMetadata.METADATA_KEY_TITLE);
-                mMetadata.artist = metadata.getString(android.media.MediaMetadata.METADATA_KEY_ARTIST);
+                mMetadata.trackTitle = metadata.getString(MediaMetadata.METADATA_KEY_TITLE);
+                mMetadata.artist = metadata.getString(MediaMetadata.METADATA_KEY_ARTIST);
+                updateArtwork(metadata);
+            }
+            final int state = playbackState != null
+                ? playbackState.getState()
+                : PlaybackState.STATE_NONE;
+            mReportedPlaybackState = state;
+            if (!confirmPendingCommand(state)) {
+                // Keep showing what the user asked for until the session catches up
+                scheduleUpdate();
+                return;
             }
+            updatePlaybackState(state);
         } else {
+            mPendingPlaybackState = PlaybackState.STATE_NONE;
+            mReportedPlaybackState = PlaybackState.STATE_NONE;
+            mHandler.removeCallbacks(mPendingCommandTimeout);
             mMetadata.clear();
             mActive = false;
             mClientIdLost = true;
             mIsLoading = false;
+            scheduleUpdate();
+        }
+    }
+
+    private void updateArtwork(MediaMetadata metadata) {
+        final String key = MusicArtworkCache.getKey(metadata);
+        mMetadata.artworkKey = key;
+        mMetadata.artwork = mArtworkCache.get(key);
+        if (mMetadata.artwork == null) {
+            prefetchArtwork(metadata);
+        }
+    }
+
+    /** Starts scaling the artwork of {@code metadata} down, unless it is cached already. */
+    private void prefetchArtwork(@Nullable MediaMetadata metadata) {
+        final String key = MusicArtworkCache.getKey(metadata);
+        if (key == null || mArtworkCache.contains(key)) return;
+        final Bitmap artwork = MusicArtworkCache.getArtwork(metadata);
+        if (artwork != null) {
+            mArtworkCache.load(key, artwork, mOnArtworkLoaded);
+        }
+    }
+
+    private void onArtworkLoaded(String key) {
+        if (key.equals(mMetadata.artworkKey)) {
+            mMetadata.artwork = mArtworkCache.get(key);
+            scheduleUpdate();
         }
-        refreshState();
     }
 
     private void updatePlaybackState(int state) {
@@ -199,10 +233,108 @@ public class MusicTile extends QSTileImpl<BooleanState> {
                 mIsLoading = false;
                 break;
         }
-        if (active != mActive || mIsLoading) {
-            mActive = active;
-            refreshState();
+        mActive = active;
+        scheduleUpdate();
+    }
+
+    private void scheduleUpdate() {
+        if (mUpdatePending) return;
+        mUpdatePending = true;
+        mHandler.postDelayed(mApplyUpdate, UPDATE_COALESCE_DELAY);
+    }
+
+    /** Folds the media callbacks of the last window into one refresh, if anything shows. */
+    private void applyUpdate() {
+        mUpdatePending = false;
+        final MusicState state = buildMusicState();
+        if (state.equals(mMusicState)) return;
+        mMusicState = state;
+        refreshState();
+    }
+
+    private MusicState buildMusicState() {
+        if (mIsLoading) {
+            return new MusicState(false, true, mClientIdLost, null,
+                    mContext.getString(R.string.quick_settings_music_loading),
+                    mClientIdLost
+                        ? mContext.getString(R.string.quick_settings_music_no_player)
+                        : mContext.getString(R.string.quick_settings_music_loading));
+        }
+
+        final String label;
+        if (mActive) {
+            label = mMetadata.trackTitle != null
+                ? mMetadata.trackTitle
+                : mContext.getString(R.string.quick_settings_music_pause);
+            mLastPlayedTrack = mMetadata.trackTitle;
+            mLastActiveTime = System.currentTimeMillis();
+        } else if (mLastPlayedTrack != null &&
+                (System.currentTimeMillis() - mLastActiveTime) < LAST_ACTIVE_TIMEOUT) {
+            // Show last played track if within timeout
+            label = mContext.getString(
+                R.string.quick_settings_music_last_played, mLastPlayedTrack);
+        } else {
+            label = mContext.getString(R.string.quick_settings_music_play);
+        }
+
+        // Add secondary label based on state
+        final String secondaryLabel;
+        if (mClientIdLost) {
+            secondaryLabel = mContext.getString(R.string.quick_settings_music_no_player);
+        } else if (mActive && mMetadata.artist != null) {
+            secondaryLabel = mMetadata.artist;
+        } else {
+            secondaryLabel = "";
+        }
+        return new MusicState(mActive, false, mClientIdLost, mMetadata.artwork,
+                label, secondaryLabel);
+    }
+
+    /**
+     * Returns whether a reported playback state should be applied, and records the tap to
+     * feedback latency once the session reports the state a command asked for.
+     */
+    private boolean confirmPendingCommand(int state) {
+        if (mPendingPlaybackState == PlaybackState.STATE_NONE) {
+            return true;
+        }
+        if (state == mPendingPlaybackState) {
+            mFeedbackLatency.record(SystemClock.uptimeMillis() - mPendingCommandTime);
+            mPendingPlaybackState = PlaybackState.STATE_NONE;
+            mHandler.removeCallbacks(mPendingCommandTimeout);
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * The session never reported the state a command asked for, e.g. because the command
+     * was rejected. Falls back to whatever it reported last.
+     */
+    private void onPendingCommandTimeout() {
+        if (mPendingPlaybackState == PlaybackState.STATE_NONE) return;
+        mPendingPlaybackState = PlaybackState.STATE_NONE;
+        updatePlaybackState(mReportedPlaybackState);
+    }
+
+    /**
+     * Shows the outcome of a transport command right away and sends the command itself,
+     * a binder call into the media app, from a background executor.
+     */
+    private void sendTransportCommand(int optimisticState, int expectedState,
+            Consumer<MediaController.TransportControls> command) {
+        final MediaController controller = mMediaController;
+        if (controller == null) return;
+
+        mPendingPlaybackState = expectedState;
+        mPendingCommandTime = SystemClock.uptimeMillis();
+        mHandler.removeCallbacks(mPendingCommandTimeout);
+        mHandler.postDelayed(mPendingCommandTimeout, PENDING_COMMAND_TIMEOUT);
+        updatePlaybackState(optimisticState);
+        mHandler.removeCallbacks(mApplyUpdate);
+        applyUpdate();
+
+        mUiBgExecutor.execute(() -> command.accept(controller.getTransportControls()));
     }
 
     @Override
@@ -212,17 +344,15 @@ public class MusicTile extends QSTileImpl<BooleanState> {
         if (mActive) {
             checkDoubleClick();
         } else {
-            mMediaController.getTransportControls().play();
+            sendTransportCommand(PlaybackState.STATE_PLAYING, PlaybackState.STATE_PLAYING,
+                    MediaController.TransportControls::play);
         }
-        refreshState();
     }
 
     @Override
     protected void handleLongClick(@Nullable Expandable expandable) {
-        if (mMediaController != null) {
-            mMediaController.getTransportControls().skipToNext();
-        }
-        refreshState();
+        sendTransportCommand(PlaybackState.STATE_SKIPPING_TO_NEXT, PlaybackState.STATE_PLAYING,
+                MediaController.TransportControls::skipToNext);
     }
 
     @Override
@@ -242,45 +372,16 @@ public class MusicTile extends QSTileImpl<BooleanState> {
 
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
-        if (mIsLoading) {
-            state.icon = ResourceIcon.get(R.drawable.ic_qs_media_play);
-            state.label = mContext.getString(R.string.quick_settings_music_loading);
-            state.state = Tile.STATE_INACTIVE;
-            return;
-        }
-
-        if (mActive) {
-            state.icon = ResourceIcon.get(R.drawable.ic_qs_media_pause);
-            state.label = mMetadata.trackTitle != null
-                ? mMetadata.trackTitle 
-                : mContext.getString(R.string.quick_settings_music_pause);
-            state.state = Tile.STATE_ACTIVE;
-            mLastPlayedTrack = mMetadata.trackTitle;
-            mLastActiveTime = System.currentTimeMillis();
-        } else {
-            state.icon = ResourceIcon.get(R.drawable.ic_qs_media_play);
-            
-            // Show last played track if within timeout
-            if (mLastPlayedTrack != null && 
-                (System.currentTimeMillis() - mLastActiveTime) < LAST_ACTIVE_TIMEOUT) {
-                state.label = mContext.getString(
-                    R.string.quick_settings_music_last_played, mLastPlayedTrack);
-            } else {
-                state.label = mContext.getString(R.string.quick_settings_music_play);
-            }
-            state.state = Tile.STATE_INACTIVE;
-        }
-
-        // Add secondary label based on state
-        if (mClientIdLost) {
-            state.secondaryLabel = mContext.getString(R.string.quick_settings_music_no_player);
-        } else if (mIsLoading) {
-            state.secondaryLabel = mContext.getString(R.string.quick_settings_music_loading);
-        } else if (mActive && mMetadata.artist != null) {
-            state.secondaryLabel = mMetadata.artist;
+        final MusicState musicState = mMusicState;
+        if (musicState.artwork != null) {
+            state.icon = musicState.artwork;
         } else {
-            state.secondaryLabel = "";
+            state.icon = ResourceIcon.get(musicState.active
+                    ? R.drawable.ic_qs_media_pause : R.drawable.ic_qs_media_play);
         }
+        state.label = musicState.label;
+        state.secondaryLabel = musicState.secondaryLabel;
+        state.state = musicState.active ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE;
     }
 
     private void checkDoubleClick() {
@@ -302,19 +403,67 @@ public class MusicTile extends QSTileImpl<BooleanState> {
     final Runnable checkDouble = new Runnable () {
         public void run() {
             mTaps = 0;
-            if (mMediaController != null) {
-                mMediaController.getTransportControls().pause();
-            }
+            sendTransportCommand(PlaybackState.STATE_PAUSED, PlaybackState.STATE_PAUSED,
+                    MediaController.TransportControls::pause);
         }
     };
 
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        mFeedbackLatency.dump(pw);
+        mArtworkCache.dump(pw);
+    }
+
+    /** What the tile shows; a new one is only published when it differs. */
+    private static final class MusicState {
+        final boolean active;
+        final boolean loading;
+        final boolean clientIdLost;
+        final Icon artwork;
+        final String label;
+        final String secondaryLabel;
+
+        MusicState(boolean active, boolean loading, boolean clientIdLost, Icon artwork,
+                String label, String secondaryLabel) {
+            this.active = active;
+            this.loading = loading;
+            this.clientIdLost = clientIdLost;
+            this.artwork = artwork;
+            this.label = label;
+            this.secondaryLabel = secondaryLabel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MusicState)) return false;
+            MusicState that = (MusicState) o;
+            return active == that.active
+                    && loading == that.loading
+                    && clientIdLost == that.clientIdLost
+                    && artwork == that.artwork
+                    && Objects.equals(label, that.label)
+                    && Objects.equals(secondaryLabel, that.secondaryLabel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(active, loading, clientIdLost, artwork, label, secondaryLabel);
+        }
+    }
+
     class Metadata {
         private String trackTitle;
         private String artist;
+        private String artworkKey;
+        private Icon artwork;
 
         public void clear() {
             trackTitle = null;
             artist = null;
+            artworkKey = null;
+            artwork = null;
         }
     }
 
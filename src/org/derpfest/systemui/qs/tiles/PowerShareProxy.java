@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IHwBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import vendor.lineage.powershare.V1_0.IPowerShare;
+
+import java.io.PrintWriter;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous front of the PowerShare HAL for {@link PowerShareTile}.
+ *
+ * All HAL calls run on a background looper, which is only requested once the HAL was
+ * found. The enabled state and the minimum battery level are cached, so they can be
+ * read on any thread without a round trip. If the HAL dies, the proxy reconnects to it with
+ * a growing delay.
+ */
+final class PowerShareProxy implements PowerShareWatchdog.Control {
+
+    private static final String TAG = "PowerShareProxy";
+
+    private static final long RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 60 * 1000;
+
+    interface Callback {
+        /** The cached state changed. Called on the result handler. */
+        void onPowerShareChanged();
+    }
+
+    private final Supplier<IPowerShare> mService;
+    private final Supplier<Looper> mLooperFactory;
+    private final Handler mResultHandler;
+    private final Callback mCallback;
+    // Set by connect() if the device has the HAL
+    private volatile Handler mHandler;
+
+    // Background thread only
+    private IPowerShare mPowerShare;
+    private long mReconnectDelay = RECONNECT_DELAY;
+    private int mDeathCount;
+
+    private volatile boolean mAvailable;
+    private volatile boolean mEnabled;
+    private volatile int mMinBattery;
+
+    private final IHwBinder.DeathRecipient mDeathRecipient = cookie -> {
+        Log.w(TAG, "PowerShare HAL died, reconnecting");
+        mHandler.post(() -> {
+            mDeathCount++;
+            mPowerShare = null;
+            mReconnectDelay = RECONNECT_DELAY;
+            reconnect();
+        });
+    };
+
+    /**
+     * @param service looks the HAL up, returns null if there is none
+     * @param looperFactory provides the looper for HAL calls, which is quit on destroy
+     */
+    PowerShareProxy(Supplier<IPowerShare> service, Supplier<Looper> looperFactory,
+            Handler resultHandler, Callback callback) {
+        mService = service;
+        mLooperFactory = looperFactory;
+        mResultHandler = resultHandler;
+        mCallback = callback;
+    }
+
+    /**
+     * Looks the HAL up and returns whether the device has one. This is the only call that
+     * blocks, the cached state is loaded in the background afterwards.
+     */
+    boolean connect() {
+        final IPowerShare powerShare = mService.get();
+        if (powerShare == null) {
+            return false;
+        }
+        mHandler = new Handler(mLooperFactory.get());
+        mAvailable = true;
+        mHandler.post(() -> {
+            mPowerShare = powerShare;
+            onConnected();
+        });
+        return true;
+    }
+
+    boolean isAvailable() {
+        return mAvailable;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    @Override
+    public int getMinBattery() {
+        return mMinBattery;
+    }
+
+    /** Re-reads the enabled state, which other clients of the HAL may have changed. */
+    void refresh() {
+        if (mHandler == null) return;
+        mHandler.post(() -> {
+            if (mPowerShare == null) return;
+            try {
+                setEnabledState(mPowerShare.isEnabled());
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to read PowerShare state", e);
+            }
+        });
+    }
+
+    /**
+     * Caches {@code enabled} right away and sends it to the HAL in the background. Like any
+     * other change of the cached state, this is reported to the callback.
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        if (mHandler == null) return;
+        setEnabledState(enabled);
+        mHandler.post(() -> {
+            if (mPowerShare == null) return;
+            try {
+                setEnabledState(mPowerShare.setEnabled(enabled));
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to set PowerShare state", e);
+                setEnabledState(!enabled);
+            }
+        });
+    }
+
+    void destroy() {
+        if (mHandler == null) return;
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(() -> {
+            if (mPowerShare != null) {
+                try {
+                    mPowerShare.unlinkToDeath(mDeathRecipient);
+                } catch (RemoteException e) {
+                    // The HAL is gone already
+                }
+                mPowerShare = null;
+            }
+            mHandler.getLooper().quitSafely();
+        });
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  PowerShareProxy:");
+        pw.println("    available=" + mAvailable + " enabled=" + mEnabled
+                + " minBattery=" + mMinBattery + " deaths=" + mDeathCount);
+    }
+
+    private void reconnect() {
+        mPowerShare = mService.get();
+        if (mPowerShare != null) {
+            onConnected();
+            return;
+        }
+        mHandler.postDelayed(this::reconnect, mReconnectDelay);
+        mReconnectDelay = Math.min(mReconnectDelay * 2, MAX_RECONNECT_DELAY);
+    }
+
+    private void onConnected() {
+        try {
+            mPowerShare.linkToDeath(mDeathRecipient, 0);
+            mMinBattery = mPowerShare.getMinBattery();
+            setEnabledState(mPowerShare.isEnabled());
+            mResultHandler.post(mCallback::onPowerShareChanged);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to read PowerShare state", e);
+        }
+    }
+
+    private void setEnabledState(boolean enabled) {
+        if (mEnabled == enabled) return;
+        mEnabled = enabled;
+        mResultHandler.post(mCallback::onPowerShareChanged);
+    }
+
+    /** Looks the HAL service up, returns null if the device has none. */
+    static IPowerShare getService() {
+        try {
+            return IPowerShare.getService();
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to get PowerShare HAL", e);
+        } catch (NoSuchElementException e) {
+            // service not available
+        }
+        return null;
+    }
+
+    /** Starts a background thread for the HAL calls and returns its looper. */
+    static Looper startThread() {
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return thread.getLooper();
+    }
+}
@@ -20,10 +20,8 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Intent;
-import android.os.BatteryManager;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.RemoteException;
 import android.service.quicksettings.Tile;
 
 import androidx.annotation.Nullable;
@@ -45,9 +43,7 @@ import com.android.systemui.statusbar.policy.BatteryController;
 
 import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
 
-import vendor.lineage.powershare.V1_0.IPowerShare;
-
-import java.util.NoSuchElementException;
+import java.io.PrintWriter;
 
 import javax.inject.Inject;
 
@@ -56,8 +52,10 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
 
     public static final String TILE_SPEC = "powershare";
 
-    private IPowerShare mPowerShare;
+    private final PowerShareProxy mPowerShare;
+    private final PowerShareWatchdog mWatchdog;
     private BatteryController mBatteryController;
+    private volatile int mBatteryLevel = -1;
     private NotificationManager mNotificationManager;
     private Notification mNotification;
     private static final String CHANNEL_ID = TILE_SPEC;
@@ -78,12 +76,14 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
                 statusBarStateController, activityStarter, qsLogger);
-        mPowerShare = getPowerShare();
-        if (mPowerShare == null) {
+        mBatteryController = batteryController;
+        mPowerShare = new PowerShareProxy(PowerShareProxy::getService,
+                PowerShareProxy::startThread, mHandler, this::onPowerShareChanged);
+        mWatchdog = new PowerShareWatchdog(batteryController, mPowerShare);
+        if (!mPowerShare.connect()) {
             return;
         }
 
-        mBatteryController = batteryController;
         mNotificationManager = mContext.getSystemService(NotificationManager.class);
 
         NotificationChannel notificationChannel = new NotificationChannel(CHANNEL_ID,
@@ -101,6 +101,17 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
         mNotification.visibility = Notification.VISIBILITY_PUBLIC;
 
         batteryController.addCallback(this);
+        mWatchdog.register();
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        if (isAvailable()) {
+            mBatteryController.removeCallback(this);
+            mWatchdog.unregister();
+        }
+        mPowerShare.destroy();
     }
 
     @Override
@@ -108,6 +119,21 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
         refreshState();
     }
 
+    private void onPowerShareChanged() {
+        // Also catches PowerShare being turned on elsewhere while it should stay off
+        mWatchdog.check();
+        refreshState();
+    }
+
+    @Override
+    public void onBatteryLevelChanged(int level, boolean pluggedIn, boolean charging) {
+        final boolean wasLow = isBatteryLow();
+        mBatteryLevel = level;
+        if (isBatteryLow() != wasLow) {
+            refreshState();
+        }
+    }
+
     @Override
     public void refreshState() {
         updatePowerShareState();
@@ -120,28 +146,16 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
             return;
         }
 
-        if (mBatteryController.isPowerSave()) {
-            try {
-                mPowerShare.setEnabled(false);
-            } catch (RemoteException ex) {
-                ex.printStackTrace();
-            }
-        }
-
-        try {
-            if (mPowerShare.isEnabled()) {
-                mNotificationManager.notify(NOTIFICATION_ID, mNotification);
-            } else {
-                mNotificationManager.cancel(NOTIFICATION_ID);
-            }
-        } catch (RemoteException ex) {
-            ex.printStackTrace();
+        if (mPowerShare.isEnabled()) {
+            mNotificationManager.notify(NOTIFICATION_ID, mNotification);
+        } else {
+            mNotificationManager.cancel(NOTIFICATION_ID);
         }
     }
 
     @Override
     public boolean isAvailable() {
-        return mPowerShare != null;
+        return mPowerShare.isAvailable();
     }
 
     @Override
@@ -153,15 +167,8 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
 
     @Override
     public void handleClick(@Nullable Expandable expandable) {
-        try {
-            boolean powerShareEnabled = mPowerShare.isEnabled();
-
-            if (mPowerShare.setEnabled(!powerShareEnabled) != powerShareEnabled) {
-                refreshState();
-            }
-        } catch (RemoteException ex) {
-            ex.printStackTrace();
-        }
+        // The proxy reports the change, and again if the HAL ends up in another state
+        mPowerShare.setEnabled(!mPowerShare.isEnabled());
     }
 
     @Override
@@ -174,7 +181,7 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
         if (mBatteryController.isPowerSave()) {
             return mContext.getString(R.string.quick_settings_powershare_off_powersave_label);
         } else {
-            if (getBatteryLevel() < getMinBatteryLevel()) {
+            if (isBatteryLow()) {
                 return mContext.getString(R.string.quick_settings_powershare_off_low_battery_label);
             }
         }
@@ -190,15 +197,10 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
 
         state.icon = ResourceIcon.get(R.drawable.ic_qs_powershare);
         state.hasLongClickEffect = false;
-        try {
-            state.value = mPowerShare.isEnabled();
-        } catch (RemoteException ex) {
-            state.value = false;
-            ex.printStackTrace();
-        }
+        state.value = mPowerShare.isEnabled();
         state.label = mContext.getString(R.string.quick_settings_powershare_label);
 
-        if (mBatteryController.isPowerSave() || getBatteryLevel() < getMinBatteryLevel()) {
+        if (mBatteryController.isPowerSave() || isBatteryLow()) {
             state.state = Tile.STATE_UNAVAILABLE;
         } else if (!state.value) {
             state.state = Tile.STATE_INACTIVE;
@@ -214,32 +216,21 @@ public class PowerShareTile extends QSTileImpl<BooleanState>
 
     @Override
     public void handleSetListening(boolean listening) {
-    }
-
-    private synchronized IPowerShare getPowerShare() {
-        try {
-            return IPowerShare.getService();
-        } catch (RemoteException ex) {
-            ex.printStackTrace();
-        } catch (NoSuchElementException ex) {
-            // service not available
+        if (listening && isAvailable()) {
+            mPowerShare.refresh();
         }
-
-        return null;
     }
 
-    private int getMinBatteryLevel() {
-        try {
-            return mPowerShare.getMinBattery();
-        } catch (RemoteException ex) {
-            ex.printStackTrace();
-        }
-
-        return 0;
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        pw.println("  batteryLevel=" + mBatteryLevel);
+        mPowerShare.dump(pw);
+        mWatchdog.dump(pw);
     }
 
-    private int getBatteryLevel() {
-        BatteryManager bm = mContext.getSystemService(BatteryManager.class);
-        return bm.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+    private boolean isBatteryLow() {
+        // Unknown until the first battery callback
+        return mBatteryLevel >= 0 && mBatteryLevel < mPowerShare.getMinBattery();
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.util.Log;
+
+import com.android.systemui.statusbar.policy.BatteryController;
+
+import java.io.PrintWriter;
+
+/**
+ * Turns PowerShare off as soon as the battery drops below the HAL minimum or battery saver
+ * comes on.
+ *
+ * It only reacts to {@link BatteryController} callbacks, so it works while the shade is
+ * closed without polling or holding a wakelock.
+ */
+final class PowerShareWatchdog implements BatteryController.BatteryStateChangeCallback {
+
+    private static final String TAG = "PowerShareWatchdog";
+
+    /** What the watchdog needs of PowerShare, implemented by {@link PowerShareProxy}. */
+    interface Control {
+        boolean isEnabled();
+
+        int getMinBattery();
+
+        void setEnabled(boolean enabled);
+    }
+
+    private final BatteryController mBatteryController;
+    private final Control mPowerShare;
+
+    // Unknown until the first battery callback
+    private volatile int mBatteryLevel = -1;
+    private volatile boolean mPowerSave;
+
+    private int mLowBatteryCount;
+    private int mPowerSaveCount;
+
+    PowerShareWatchdog(BatteryController batteryController, Control powerShare) {
+        mBatteryController = batteryController;
+        mPowerShare = powerShare;
+    }
+
+    void register() {
+        mBatteryController.addCallback(this);
+    }
+
+    void unregister() {
+        mBatteryController.removeCallback(this);
+    }
+
+    @Override
+    public void onBatteryLevelChanged(int level, boolean pluggedIn, boolean charging) {
+        mBatteryLevel = level;
+        check();
+    }
+
+    @Override
+    public void onPowerSaveChanged(boolean isPowerSave) {
+        mPowerSave = isPowerSave;
+        check();
+    }
+
+    /** Turns PowerShare off if it is on although it should not be. */
+    void check() {
+        if (!mPowerShare.isEnabled()) return;
+        if (mPowerSave) {
+            Log.i(TAG, "Battery saver on, turning PowerShare off");
+            mPowerSaveCount++;
+            mPowerShare.setEnabled(false);
+        } else if (mBatteryLevel >= 0 && mBatteryLevel < mPowerShare.getMinBattery()) {
+            Log.i(TAG, "Battery at " + mBatteryLevel + "%, turning PowerShare off");
+            mLowBatteryCount++;
+            mPowerShare.setEnabled(false);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  PowerShareWatchdog:");
+        pw.println("    batteryLevel=" + mBatteryLevel + " powerSave=" + mPowerSave
+                + " disabledForLowBattery=" + mLowBatteryCount
+                + " disabledForPowerSave=" + mPowerSaveCount);
+    }
+}
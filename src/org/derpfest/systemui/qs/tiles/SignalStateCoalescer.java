@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.function.Consumer;
+
+/**
+ * Funnels network indicator callbacks of a tile into one delivery per frame.
+ *
+ * Signal callbacks post immutable snapshots, which may arrive on any thread. A snapshot equal
+ * to the last one is dropped right away. Changed snapshots are delivered on the tile handler,
+ * at most once per frame interval, and only the newest of them is delivered.
+ */
+final class SignalStateCoalescer<T> {
+
+    /** One frame at 60 Hz. */
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private final Handler mHandler;
+    private final Consumer<T> mConsumer;
+    private final Runnable mDeliver = this::deliver;
+
+    private T mDelivered;
+    private T mPending;
+    private boolean mScheduled;
+    private long mLastDeliveryTime;
+
+    private long mDeliveredCount;
+    private long mSuppressedCount;
+
+    /**
+     * @param initial snapshot returned by {@link #get()} until the first delivery
+     * @param consumer receives changed snapshots on {@code handler}
+     */
+    SignalStateCoalescer(Handler handler, T initial, Consumer<T> consumer) {
+        mHandler = handler;
+        mDelivered = initial;
+        mConsumer = consumer;
+    }
+
+    /** Returns the last delivered snapshot. */
+    synchronized T get() {
+        return mDelivered;
+    }
+
+    synchronized void post(T snapshot) {
+        final T latest = mPending != null ? mPending : mDelivered;
+        if (snapshot.equals(latest)) {
+            mSuppressedCount++;
+            return;
+        }
+        if (mPending != null) {
+            // Replaced before it was delivered
+            mSuppressedCount++;
+        }
+        mPending = snapshot;
+        if (!mScheduled) {
+            mScheduled = true;
+            final long delay = mLastDeliveryTime + FRAME_INTERVAL_MS
+                    - SystemClock.uptimeMillis();
+            mHandler.postDelayed(mDeliver, Math.max(0, delay));
+        }
+    }
+
+    private void deliver() {
+        final T snapshot;
+        synchronized (this) {
+            mScheduled = false;
+            snapshot = mPending;
+            mPending = null;
+            if (snapshot == null) return;
+            if (snapshot.equals(mDelivered)) {
+                // Changed back within the frame
+                mSuppressedCount++;
+                return;
+            }
+            mDelivered = snapshot;
+            mLastDeliveryTime = SystemClock.uptimeMillis();
+            mDeliveredCount++;
+        }
+        mConsumer.accept(snapshot);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  SignalStateCoalescer:");
+        pw.println("    delivered=" + mDeliveredCount + " suppressed=" + mSuppressedCount);
+        pw.println("    current=" + mDelivered);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.security.KeyChain;
+
+import com.android.internal.net.VpnConfig;
+import com.android.internal.net.VpnProfile;
+import com.android.systemui.statusbar.policy.SecurityController;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Configured legacy VPN profiles and VPN apps, for {@link VpnTile}.
+ *
+ * Reading them takes a keystore read and a package query, and the app labels a package
+ * lookup each, so the lists and labels are built on a background executor and kept until
+ * packages, the keystore or the locale change. The tile renders, handles clicks and fills
+ * the connect dialog from the cached snapshot.
+ */
+final class VpnInventory {
+
+    /** Immutable lists of what can be connected to. */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyList(),
+                Collections.emptyList(), new CharSequence[0]);
+
+        final List<VpnProfile> profiles;
+        final List<String> vpnApps;
+        /** Chooser labels, the profile names followed by the app labels. Do not modify. */
+        final CharSequence[] labels;
+
+        Snapshot(List<VpnProfile> profiles, List<String> vpnApps, CharSequence[] labels) {
+            this.profiles = Collections.unmodifiableList(profiles);
+            this.vpnApps = Collections.unmodifiableList(vpnApps);
+            this.labels = labels;
+        }
+
+        boolean isEmpty() {
+            return profiles.isEmpty() && vpnApps.isEmpty();
+        }
+    }
+
+    private final Context mContext;
+    private final SecurityController mController;
+    private final Executor mBgExecutor;
+    private final Handler mHandler;
+    private final Runnable mOnChanged;
+
+    private volatile Snapshot mSnapshot = Snapshot.EMPTY;
+
+    // Handler thread only
+    private boolean mLoading;
+    private boolean mDirty;
+    private int mBuildCount;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    VpnInventory(Context context, SecurityController controller, Executor bgExecutor,
+            Handler handler, Runnable onChanged) {
+        mContext = context;
+        mController = controller;
+        mBgExecutor = bgExecutor;
+        mHandler = handler;
+        mOnChanged = onChanged;
+    }
+
+    /** Starts watching for changes and builds the first snapshot. */
+    void register() {
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, packageFilter, null, mHandler);
+        final IntentFilter filter = new IntentFilter(KeyChain.ACTION_KEYCHAIN_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, filter, null, mHandler);
+        mHandler.post(this::invalidate);
+    }
+
+    void unregister() {
+        mContext.unregisterReceiver(mReceiver);
+    }
+
+    /** Returns the last built snapshot, which is empty until the first build finished. */
+    Snapshot get() {
+        return mSnapshot;
+    }
+
+    /** Rebuilds the snapshot in the background. Must be called on the handler thread. */
+    void invalidate() {
+        if (mLoading) {
+            mDirty = true;
+            return;
+        }
+        mLoading = true;
+        mDirty = false;
+        mBgExecutor.execute(() -> {
+            final Snapshot snapshot = build();
+            mHandler.post(() -> onBuilt(snapshot));
+        });
+    }
+
+    void dump(PrintWriter pw) {
+        final Snapshot snapshot = mSnapshot;
+        pw.println("  VpnInventory:");
+        pw.println("    profiles=" + snapshot.profiles.size()
+                + " vpnApps=" + snapshot.vpnApps + " builds=" + mBuildCount);
+    }
+
+    private Snapshot build() {
+        final List<VpnProfile> profiles = mController.getConfiguredLegacyVpns();
+        final List<String> vpnApps = mController.getVpnAppPackageNames();
+        final int profileCount = profiles.size();
+        final CharSequence[] labels = new CharSequence[profileCount + vpnApps.size()];
+        for (int i = 0; i < profileCount; i++) {
+            labels[i] = profiles.get(i).name;
+        }
+        for (int i = 0; i < vpnApps.size(); i++) {
+            try {
+                labels[profileCount + i] = VpnConfig.getVpnLabel(mContext, vpnApps.get(i));
+            } catch (PackageManager.NameNotFoundException e) {
+                labels[profileCount + i] = vpnApps.get(i);
+            }
+        }
+        return new Snapshot(profiles, vpnApps, labels);
+    }
+
+    private void onBuilt(Snapshot snapshot) {
+        mLoading = false;
+        mBuildCount++;
+        final Snapshot previous = mSnapshot;
+        mSnapshot = snapshot;
+        if (mDirty) {
+            invalidate();
+        }
+        if (previous.isEmpty() != snapshot.isEmpty()) {
+            mOnChanged.run();
+        }
+    }
+}
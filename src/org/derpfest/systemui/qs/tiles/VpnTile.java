@@ -19,9 +19,9 @@ package org.derpfest.systemui.qs.tiles;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.service.quicksettings.Tile;
 import android.text.Editable;
@@ -38,11 +38,11 @@ import androidx.annotation.Nullable;
 
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
-import com.android.internal.net.VpnConfig;
 import com.android.internal.net.VpnProfile;
 import com.android.systemui.animation.Expandable;
 import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.dagger.qualifiers.UiBackground;
 import com.android.systemui.plugins.ActivityStarter;
 import com.android.systemui.plugins.FalsingManager;
 import com.android.systemui.plugins.qs.QSTile.BooleanState;
@@ -57,7 +57,9 @@ import com.android.systemui.statusbar.phone.SystemUIDialog;
 import com.android.systemui.statusbar.policy.KeyguardStateController;
 import com.android.systemui.statusbar.policy.SecurityController;
 
+import java.io.PrintWriter;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
@@ -70,6 +72,10 @@ public class VpnTile extends QSTileImpl<BooleanState> {
     private final KeyguardStateController mKeyguard;
     private final PanelInteractor mPanelInteractor;
     private final Callback mCallback = new Callback();
+    private final VpnInventory mInventory;
+
+    private volatile long mClickTime;
+    private final LatencyStats mDialogLatency = new LatencyStats("tap to dialog");
 
     @Inject
     public VpnTile(
@@ -84,12 +90,22 @@ public class VpnTile extends QSTileImpl<BooleanState> {
             QSLogger qsLogger,
             SecurityController securityController,
             KeyguardStateController keyguardStateController,
-            PanelInteractor panelInteractor) {
+            PanelInteractor panelInteractor,
+            @UiBackground Executor uiBgExecutor) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
                 statusBarStateController, activityStarter, qsLogger);
         mController = securityController;
         mKeyguard = keyguardStateController;
         mPanelInteractor = panelInteractor;
+        mInventory = new VpnInventory(mContext, mController, uiBgExecutor, mHandler,
+                () -> refreshState());
+        mInventory.register();
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        mInventory.unregister();
     }
 
     @Override
@@ -101,6 +117,8 @@ public class VpnTile extends QSTileImpl<BooleanState> {
     public void handleSetListening(boolean listening) {
         if (DEBUG) Log.d(TAG, "handleSetListening " + listening);
         if (listening) {
+            // Legacy profiles are edited without a broadcast, catch up in the background
+            mInventory.invalidate();
             mController.addCallback(mCallback);
             mKeyguard.addCallback(mCallback);
         } else {
@@ -113,6 +131,7 @@ public class VpnTile extends QSTileImpl<BooleanState> {
     protected void handleUserSwitch(int newUserId) {
         super.handleUserSwitch(newUserId);
         mController.onUserSwitched(newUserId);
+        mInventory.invalidate();
     }
 
     @Override
@@ -122,6 +141,7 @@ public class VpnTile extends QSTileImpl<BooleanState> {
 
     @Override
     protected void handleClick(@Nullable Expandable expandable) {
+        mClickTime = SystemClock.uptimeMillis();
         if (mKeyguard.isMethodSecure() && !mKeyguard.canDismissLockScreen()) {
             mActivityStarter.postQSRunnableDismissingKeyguard(() -> {
                 showConnectDialogOrDisconnect();
@@ -139,8 +159,9 @@ public class VpnTile extends QSTileImpl<BooleanState> {
             mController.disconnectPrimaryVpn();
             return;
         }
-        final List<VpnProfile> profiles = mController.getConfiguredLegacyVpns();
-        final List<String> vpnApps = mController.getVpnAppPackageNames();
+        final VpnInventory.Snapshot inventory = mInventory.get();
+        final List<VpnProfile> profiles = inventory.profiles;
+        final List<String> vpnApps = inventory.vpnApps;
         if (profiles.isEmpty() && vpnApps.isEmpty()) {
             return;
         } else if (profiles.isEmpty() && vpnApps.size() == 1) {
@@ -152,22 +173,10 @@ public class VpnTile extends QSTileImpl<BooleanState> {
         }
 
         mUiHandler.post(() -> {
-            CharSequence[] labels = new CharSequence[profiles.size() + vpnApps.size()];
-            int profileCount = profiles.size();
-            for (int i = 0; i < profileCount; i++) {
-                labels[i] = profiles.get(i).name;
-            }
-            for (int i = 0; i < vpnApps.size(); i++) {
-                try {
-                    labels[profileCount + i] = VpnConfig.getVpnLabel(mContext, vpnApps.get(i));
-                } catch (PackageManager.NameNotFoundException e) {
-                    labels[profileCount + i] = vpnApps.get(i);
-                }
-            }
-
+            final int profileCount = profiles.size();
             Dialog dialog = new AlertDialog.Builder(mContext)
                     .setTitle(R.string.quick_settings_vpn_connect_dialog_title)
-                    .setItems(labels, (dlg, which) -> {
+                    .setItems(inventory.labels, (dlg, which) -> {
                         if (which < profileCount) {
                             connectVpnOrAskForCredentials(profiles.get(which));
                         } else {
@@ -193,9 +202,7 @@ public class VpnTile extends QSTileImpl<BooleanState> {
         state.secondaryLabel = mController.getPrimaryVpnName();
         state.contentDescription = state.label;
         state.icon = ResourceIcon.get(R.drawable.ic_qs_vpn);
-        boolean hasAnyVpn = mController.getConfiguredLegacyVpns().size() > 0
-                || mController.getVpnAppPackageNames().size() > 0;
-        if (mController.isVpnRestricted() || !hasAnyVpn) {
+        if (mController.isVpnRestricted() || mInventory.get().isEmpty()) {
             state.state = Tile.STATE_UNAVAILABLE;
         } else if (state.value) {
             state.state = Tile.STATE_ACTIVE;
@@ -204,16 +211,25 @@ public class VpnTile extends QSTileImpl<BooleanState> {
         }
     }
 
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        mInventory.dump(pw);
+        mDialogLatency.dump(pw);
+    }
+
     @Override
     public int getMetricsCategory() {
         return MetricsEvent.VPN;
     }
 
-    private void connectVpnOrAskForCredentials(VpnProfile profile) {
-        if (!profile.isUsernamePasswordRequiredVpnProfile() || profile.saveLogin) {
-            mController.connectLegacyVpn(profile);
+    private void connectVpnOrAskForCredentials(VpnProfile cachedProfile) {
+        if (!cachedProfile.isUsernamePasswordRequiredVpnProfile() || cachedProfile.saveLogin) {
+            mController.connectLegacyVpn(cachedProfile);
             return;
         }
+        // Keep the typed credentials out of the shared inventory
+        final VpnProfile profile = VpnProfile.decode(cachedProfile.key, cachedProfile.encode());
 
         final LayoutInflater inflater = LayoutInflater.from(mContext);
         final View dialogView = inflater.inflate(R.layout.vpn_credentials_dialog, null);
@@ -248,6 +264,13 @@ public class VpnTile extends QSTileImpl<BooleanState> {
         SystemUIDialog.setShowForAllUsers(dialog, true);
         SystemUIDialog.registerDismissListener(dialog);
         SystemUIDialog.setWindowOnTop(dialog, mKeyguard.isShowing());
+        dialog.setOnShowListener(d -> {
+            final long clickTime = mClickTime;
+            if (clickTime == 0) return;
+            // Only the first dialog after a tap counts
+            mClickTime = 0;
+            mDialogLatency.record(SystemClock.uptimeMillis() - clickTime);
+        });
         mUiHandler.post(() -> dialog.show());
     }
 
@@ -53,6 +53,9 @@ import com.android.systemui.statusbar.connectivity.SignalCallback;
 import com.android.systemui.statusbar.connectivity.WifiIcons;
 import com.android.systemui.statusbar.connectivity.WifiIndicators;
 
+import java.io.PrintWriter;
+import java.util.Objects;
+
 import javax.inject.Inject;
 
 /** Quick settings tile: Wifi **/
@@ -140,7 +143,7 @@ public class WifiTile extends QSTileImpl<BooleanState> {
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
         if (DEBUG) Log.d(TAG, "handleUpdateState arg=" + arg);
-        final CallbackInfo cb = mSignalCallback.mInfo;
+        final CallbackInfo cb = mSignalCallback.mSnapshots.get();
         if (mExpectDisabled) {
             if (cb.enabled) {
                 return; // Ignore updates until disabled event occurs.
@@ -208,6 +211,12 @@ public class WifiTile extends QSTileImpl<BooleanState> {
         return mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI);
     }
 
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        mSignalCallback.mSnapshots.dump(pw);
+    }
+
     @Nullable
     private static String removeDoubleQuotes(String string) {
         if (string == null) return null;
@@ -218,17 +227,55 @@ public class WifiTile extends QSTileImpl<BooleanState> {
         return string;
     }
 
+    /** Immutable snapshot of the wifi indicators, compared to skip redundant refreshes. */
     protected static final class CallbackInfo {
-        boolean enabled;
-        boolean connected;
-        int wifiSignalIconId;
+        final boolean enabled;
+        final boolean connected;
+        final int wifiSignalIconId;
         @Nullable
-        String ssid;
+        final String ssid;
         @Nullable
-        String wifiSignalContentDescription;
-        boolean isTransient;
+        final String wifiSignalContentDescription;
+        final boolean isTransient;
         @Nullable
-        public String statusLabel;
+        public final String statusLabel;
+
+        CallbackInfo() {
+            this(false, false, 0, null, null, false, null);
+        }
+
+        CallbackInfo(boolean enabled, boolean connected, int wifiSignalIconId,
+                @Nullable String ssid, @Nullable String wifiSignalContentDescription,
+                boolean isTransient, @Nullable String statusLabel) {
+            this.enabled = enabled;
+            this.connected = connected;
+            this.wifiSignalIconId = wifiSignalIconId;
+            this.ssid = ssid;
+            this.wifiSignalContentDescription = wifiSignalContentDescription;
+            this.isTransient = isTransient;
+            this.statusLabel = statusLabel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CallbackInfo)) return false;
+            CallbackInfo other = (CallbackInfo) o;
+            return enabled == other.enabled
+                    && connected == other.connected
+                    && wifiSignalIconId == other.wifiSignalIconId
+                    && isTransient == other.isTransient
+                    && Objects.equals(ssid, other.ssid)
+                    && Objects.equals(wifiSignalContentDescription,
+                            other.wifiSignalContentDescription)
+                    && Objects.equals(statusLabel, other.statusLabel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(enabled, connected, wifiSignalIconId, ssid,
+                    wifiSignalContentDescription, isTransient, statusLabel);
+        }
 
         @Override
         public String toString() {
@@ -239,12 +286,14 @@ public class WifiTile extends QSTileImpl<BooleanState> {
                     .append(",ssid=").append(ssid)
                     .append(",wifiSignalContentDescription=").append(wifiSignalContentDescription)
                     .append(",isTransient=").append(isTransient)
+                    .append(",statusLabel=").append(statusLabel)
                     .append(']').toString();
         }
     }
 
     protected final class WifiSignalCallback implements SignalCallback {
-        final CallbackInfo mInfo = new CallbackInfo();
+        final SignalStateCoalescer<CallbackInfo> mSnapshots = new SignalStateCoalescer<>(
+                mHandler, new CallbackInfo(), info -> refreshState());
 
         @Override
         public void setWifiIndicators(@NonNull WifiIndicators indicators) {
@@ -252,14 +301,10 @@ public class WifiTile extends QSTileImpl<BooleanState> {
             if (indicators.qsIcon == null) {
                 return;
             }
-            mInfo.enabled = indicators.enabled;
-            mInfo.connected = indicators.qsIcon.visible;
-            mInfo.wifiSignalIconId = indicators.qsIcon.icon;
-            mInfo.ssid = indicators.description;
-            mInfo.wifiSignalContentDescription = indicators.qsIcon.contentDescription;
-            mInfo.isTransient = indicators.isTransient;
-            mInfo.statusLabel = indicators.statusLabel;
-            refreshState();
+            mSnapshots.post(new CallbackInfo(indicators.enabled, indicators.qsIcon.visible,
+                    indicators.qsIcon.icon, indicators.description,
+                    indicators.qsIcon.contentDescription, indicators.isTransient,
+                    indicators.statusLabel));
         }
     }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.os.Debug;
+
+/** Counts the objects the calling thread allocates while running some code. */
+final class AllocationCounter {
+
+    private AllocationCounter() {
+    }
+
+    /** Runs {@code r} on the calling thread and returns how many objects it allocated. */
+    @SuppressWarnings("deprecation")
+    static int count(Runnable r) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            r.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return Debug.getThreadAllocCount();
+    }
+}
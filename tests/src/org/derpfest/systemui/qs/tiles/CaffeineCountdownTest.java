@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.derpfest.systemui.qs.tiles;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.testing.AndroidTestingRunner;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.systemui.util.concurrency.FakeExecutor;
+import com.android.systemui.util.time.FakeSystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidTestingRunner.class)
+public class CaffeineCountdownTest {
+
+    private FakeSystemClock mClock;
+    private FakeExecutor mExecutor;
+    private CaffeineCountdown mCountdown;
+    private int mTicks;
+    private int mExpiries;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeSystemClock();
+        mExecutor = new FakeExecutor(mClock);
+        mCountdown = new CaffeineCountdown(mExecutor, mClock, new CaffeineCountdown.Callback() {
+            @Override
+            public void onTick() {
+                mTicks++;
+            }
+
+            @Override
+            public void onExpired() {
+                mExpiries++;
+            }
+        });
+    }
+
+    @Test
+    public void expiresAtDeadline() {
+        mCountdown.start(5000);
+        assertThat(mCountdown.getDeadline()).isEqualTo(mClock.elapsedRealtime() + 5000);
+
+        advanceTime(4999);
+        assertThat(mExpiries).isEqualTo(0);
+        assertThat(mCountdown.isRunning()).isTrue();
+        assertThat(mCountdown.getRemainingMillis()).isEqualTo(1);
+
+        advanceTime(1);
+        assertThat(mExpiries).isEqualTo(1);
+        assertThat(mCountdown.isRunning()).isFalse();
+        assertThat(mCountdown.getRemainingMillis()).isEqualTo(0);
+    }
+
+    @Test
+    public void cancel_doesNotExpire() {
+        mCountdown.start(5000);
+        mCountdown.setVisible(true);
+
+        mCountdown.cancel();
+        advanceTime(10000);
+
+        assertThat(mExpiries).isEqualTo(0);
+        assertThat(mTicks).isEqualTo(0);
+        assertThat(mExecutor.numPending()).isEqualTo(0);
+    }
+
+    @Test
+    public void restart_replacesDeadline() {
+        mCountdown.start(5000);
+        advanceTime(3000);
+
+        mCountdown.start(5000);
+        advanceTime(3000);
+        assertThat(mExpiries).isEqualTo(0);
+
+        advanceTime(2000);
+        assertThat(mExpiries).isEqualTo(1);
+    }
+
+    @Test
+    public void ticksOnlyWhileVisible() {
+        mCountdown.start(10000);
+        advanceTime(2500);
+        assertThat(mTicks).isEqualTo(0);
+
+        // The first tick lands on the next whole second of the remaining time
+        mCountdown.setVisible(true);
+        advanceTime(499);
+        assertThat(mTicks).isEqualTo(0);
+        advanceTime(1);
+        assertThat(mTicks).isEqualTo(1);
+        advanceTime(1000);
+        assertThat(mTicks).isEqualTo(2);
+
+        mCountdown.setVisible(false);
+        advanceTime(2000);
+        assertThat(mTicks).isEqualTo(2);
+    }
+
+    @Test
+    public void infinite_neverExpires() {
+        mCountdown.start(CaffeineCountdown.INFINITE);
+        mCountdown.setVisible(true);
+
+        assertThat(mCountdown.getDeadline()).isEqualTo(CaffeineCountdown.INFINITE);
+        assertThat(mCountdown.getRemainingMillis()).isEqualTo(CaffeineCountdown.INFINITE);
+        assertThat(mExecutor.numPending()).isEqualTo(0);
+        assertThat(mCountdown.isRunning()).isTrue();
+    }
+
+    private void advanceTime(long millis) {
+        mClock.advanceTime(millis);
+        mExecutor.runAllReady();
+    }
+}
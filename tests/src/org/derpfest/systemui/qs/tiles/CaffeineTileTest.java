@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.derpfest.systemui.qs.tiles;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.testing.AndroidTestingRunner;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.systemui.util.time.FakeSystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Covers the decision whether a saved caffeine session is resumed after a restart. */
+@SmallTest
+@RunWith(AndroidTestingRunner.class)
+public class CaffeineTileTest {
+
+    private static final long DURATION = 10 * 60 * 1000;
+    private static final int BOOT_COUNT = 7;
+
+    private FakeSystemClock mClock;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeSystemClock();
+    }
+
+    @Test
+    public void restore_inProgress_resumesRemainingTime() {
+        final long deadline = mClock.elapsedRealtime() + DURATION;
+        mClock.advanceTime(DURATION / 2);
+
+        assertThat(restore(DURATION, deadline, BOOT_COUNT)).isEqualTo(DURATION / 2);
+    }
+
+    @Test
+    public void restore_differentBootCount_discards() {
+        final long deadline = mClock.elapsedRealtime() + DURATION;
+
+        assertThat(restore(DURATION, deadline, BOOT_COUNT - 1)).isEqualTo(0);
+        assertThat(restore(CaffeineCountdown.INFINITE, CaffeineCountdown.INFINITE,
+                BOOT_COUNT - 1)).isEqualTo(0);
+    }
+
+    @Test
+    public void restore_deadlinePassed_discards() {
+        final long deadline = mClock.elapsedRealtime() + DURATION;
+
+        mClock.advanceTime(DURATION);
+        assertThat(restore(DURATION, deadline, BOOT_COUNT)).isEqualTo(0);
+        mClock.advanceTime(1);
+        assertThat(restore(DURATION, deadline, BOOT_COUNT)).isEqualTo(0);
+    }
+
+    @Test
+    public void restore_remainingAboveDuration_discards() {
+        final long deadline = mClock.elapsedRealtime() + DURATION + 1;
+
+        assertThat(restore(DURATION, deadline, BOOT_COUNT)).isEqualTo(0);
+    }
+
+    @Test
+    public void restore_infinite_resumesWithoutDeadline() {
+        mClock.advanceTime(DURATION);
+
+        assertThat(restore(CaffeineCountdown.INFINITE, CaffeineCountdown.INFINITE, BOOT_COUNT))
+                .isEqualTo(CaffeineCountdown.INFINITE);
+    }
+
+    private long restore(long durationMillis, long deadline, int savedBootCount) {
+        return CaffeineTile.getRestoredRemaining(durationMillis, deadline, savedBootCount,
+                BOOT_COUNT, mClock.elapsedRealtime());
+    }
+}
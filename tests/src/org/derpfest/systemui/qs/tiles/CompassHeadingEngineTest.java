@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.derpfest.systemui.qs.tiles;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.testing.AndroidTestingRunner;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidTestingRunner.class)
+public class CompassHeadingEngineTest {
+
+    private static final int WARM_UP_EVENTS = 1000;
+    private static final int EVENTS = 1000;
+
+    private CompassHeadingEngine mEngine;
+    private int mHeadings;
+    private float mLastHeading;
+
+    @Before
+    public void setUp() {
+        mEngine = new CompassHeadingEngine(degrees -> {
+            mHeadings++;
+            mLastHeading = degrees;
+        });
+    }
+
+    @Test
+    public void rotationVector_reportsAzimuth() throws Exception {
+        final SensorEvent event = SensorEvents.createEvent(
+                SensorEvents.createSensor(Sensor.TYPE_ROTATION_VECTOR), 0, 0, 0, 1);
+        // Turning the device counterclockwise turns the heading clockwise
+        SensorEvents.setRotation(event, 90);
+
+        mEngine.onSensorChanged(event);
+
+        assertThat(mHeadings).isEqualTo(1);
+        assertThat(mLastHeading).isWithin(0.5f).of(270);
+    }
+
+    @Test
+    public void rotationVector_doesNotAllocate() throws Exception {
+        final SensorEvent[] events = new SensorEvent[36];
+        final Sensor sensor = SensorEvents.createSensor(Sensor.TYPE_ROTATION_VECTOR);
+        for (int i = 0; i < events.length; i++) {
+            events[i] = SensorEvents.createEvent(sensor, 0, 0, 0, 1);
+            SensorEvents.setRotation(events[i], i * 10);
+        }
+
+        feed(events, WARM_UP_EVENTS);
+        final int allocations = AllocationCounter.count(() -> feed(events, EVENTS));
+
+        assertThat(allocations).isEqualTo(0);
+        assertThat(mHeadings).isEqualTo(WARM_UP_EVENTS + EVENTS);
+    }
+
+    @Test
+    public void accelerometerAndMagnetometer_doNotAllocate() throws Exception {
+        final Sensor accelerometer = SensorEvents.createSensor(Sensor.TYPE_ACCELEROMETER);
+        final Sensor magnetometer = SensorEvents.createSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        final SensorEvent[] events = new SensorEvent[] {
+            SensorEvents.createEvent(accelerometer, 0, 0, 9.81f),
+            SensorEvents.createEvent(magnetometer, 0, 20, -40),
+            SensorEvents.createEvent(accelerometer, 0.2f, 0.1f, 9.7f),
+            SensorEvents.createEvent(magnetometer, 5, 18, -41),
+        };
+
+        feed(events, WARM_UP_EVENTS);
+        final int allocations = AllocationCounter.count(() -> feed(events, EVENTS));
+
+        assertThat(allocations).isEqualTo(0);
+        assertThat(mHeadings).isGreaterThan(0);
+    }
+
+    @Test
+    public void publisher_doesNotAllocate() {
+        final CompassHeadingPublisher publisher = new CompassHeadingPublisher(30, 0.5f);
+        final Runnable run = () -> {
+            // Fake time, one event every 5 ms, so some are held back by the interval
+            for (int i = 0; i < EVENTS; i++) {
+                final long now = i * 5L;
+                if (!publisher.shouldPublish(i % 360, now)
+                        && publisher.getPendingDelay(now) == 0) {
+                    publisher.publishPending(now);
+                }
+            }
+        };
+
+        run.run();
+        publisher.reset();
+        final int allocations = AllocationCounter.count(run);
+
+        assertThat(allocations).isEqualTo(0);
+    }
+
+    private void feed(SensorEvent[] events, int count) {
+        for (int i = 0; i < count; i++) {
+            mEngine.onSensorChanged(events[i % events.length]);
+        }
+    }
+}
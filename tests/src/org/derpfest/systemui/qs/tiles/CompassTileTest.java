@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.derpfest.systemui.qs.tiles;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+import android.testing.TestableLooper.RunWithLooper;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.logging.MetricsLogger;
+import com.android.systemui.SysuiTestCase;
+import com.android.systemui.plugins.ActivityStarter;
+import com.android.systemui.plugins.FalsingManager;
+import com.android.systemui.plugins.statusbar.StatusBarStateController;
+import com.android.systemui.qs.QSHost;
+import com.android.systemui.qs.QsEventLogger;
+import com.android.systemui.qs.logging.QSLogger;
+import com.android.systemui.res.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Checks that a sensor event costs no allocations on its way to a tile refresh. */
+@SmallTest
+@RunWith(AndroidTestingRunner.class)
+@RunWithLooper(setAsMainLooper = true)
+public class CompassTileTest extends SysuiTestCase {
+
+    private static final int WARM_UP_EVENTS = 1000;
+    // Few enough to arrive within one publish interval, like a sensor batch
+    private static final int EVENTS = 100;
+
+    private TestableLooper mLooper;
+    private CompassTile mTile;
+    private SensorEvent[] mEvents;
+
+    @Before
+    public void setUp() throws Exception {
+        mLooper = TestableLooper.get(this);
+        final Sensor sensor = SensorEvents.createSensor(Sensor.TYPE_ROTATION_VECTOR);
+        final SensorManager sensorManager = mock(SensorManager.class);
+        when(sensorManager.getDefaultSensor(anyInt())).thenReturn(sensor);
+        mContext.addMockSystemService(Context.SENSOR_SERVICE, sensorManager);
+        final QSHost host = mock(QSHost.class);
+        when(host.getContext()).thenReturn(mContext);
+
+        mTile = new CompassTile(host, mock(QsEventLogger.class), mLooper.getLooper(),
+                new Handler(mLooper.getLooper()), mock(FalsingManager.class),
+                mock(MetricsLogger.class), mock(StatusBarStateController.class),
+                mock(ActivityStarter.class), mock(QSLogger.class));
+
+        mEvents = new SensorEvent[36];
+        for (int i = 0; i < mEvents.length; i++) {
+            mEvents[i] = SensorEvents.createEvent(sensor, 0, 0, 0, 1);
+            SensorEvents.setRotation(mEvents[i], i * 10);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mTile.destroy();
+        mLooper.processAllMessages();
+    }
+
+    @Test
+    public void sensorEvents_doNotAllocate() {
+        mTile.handleSetListening(true);
+        mTile.handleClick(null);
+        mLooper.processAllMessages();
+        final Handler sensorHandler = mTile.getSensorHandler();
+
+        // Events are delivered on the sensor thread, so that is where allocations count
+        runOnSensorThread(sensorHandler, () -> feed(WARM_UP_EVENTS));
+        // Hand the posted refresh messages back to the pool, like the tile thread would
+        mLooper.processAllMessages();
+        final int[] allocations = new int[1];
+        final boolean[] scheduled = new boolean[1];
+        // Let the first event publish right away rather than being held back
+        SystemClock.sleep(100);
+        runOnSensorThread(sensorHandler, () -> {
+            allocations[0] = AllocationCounter.count(() -> feed(EVENTS));
+            // The newest heading held back by the interval waits on the sensor thread
+            scheduled[0] = sensorHandler.hasMessagesOrCallbacks();
+        });
+
+        assertThat(allocations[0]).isEqualTo(0);
+        assertThat(scheduled[0]).isTrue();
+        // The first event published a heading and refreshed the tile
+        assertThat(mLooper.processAllMessages()).isGreaterThan(0);
+        assertThat(mTile.getState().label.toString())
+                .isNotEqualTo(mContext.getString(R.string.quick_settings_compass_init));
+    }
+
+    private void feed(int count) {
+        for (int i = 0; i < count; i++) {
+            mTile.onSensorChanged(mEvents[i % mEvents.length]);
+        }
+    }
+
+    private static void runOnSensorThread(Handler sensorHandler, Runnable r) {
+        assertThat(sensorHandler.runWithScissors(r, 10000)).isTrue();
+    }
+}
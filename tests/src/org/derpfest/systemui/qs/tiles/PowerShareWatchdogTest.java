@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.systemui.qs.tiles;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.mock;
+
+import android.os.Handler;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+import android.testing.TestableLooper.RunWithLooper;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.systemui.statusbar.policy.BatteryController;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import vendor.lineage.powershare.V1_0.IPowerShare;
+
+@SmallTest
+@RunWith(AndroidTestingRunner.class)
+@RunWithLooper
+public class PowerShareWatchdogTest {
+
+    private static final int MIN_BATTERY = 20;
+
+    private TestableLooper mLooper;
+    private FakePowerShare mHal;
+    private PowerShareProxy mProxy;
+    private PowerShareWatchdog mWatchdog;
+    private int mChanges;
+
+    @Before
+    public void setUp() {
+        mLooper = TestableLooper.get(this);
+        mHal = new FakePowerShare();
+        // HAL calls and results share the test looper
+        mProxy = new PowerShareProxy(() -> mHal, mLooper::getLooper,
+                new Handler(mLooper.getLooper()), () -> {
+                    mChanges++;
+                    mWatchdog.check();
+                });
+        mWatchdog = new PowerShareWatchdog(mock(BatteryController.class), mProxy);
+    }
+
+    @Test
+    public void levelDropsBelowMinimum_disables() {
+        mHal.mEnabled = true;
+        connect();
+        mWatchdog.onBatteryLevelChanged(MIN_BATTERY, false, false);
+        mLooper.processAllMessages();
+        assertThat(mHal.mEnabled).isTrue();
+
+        mWatchdog.onBatteryLevelChanged(MIN_BATTERY - 1, false, false);
+        mLooper.processAllMessages();
+
+        assertThat(mHal.mEnabled).isFalse();
+        assertThat(mProxy.isEnabled()).isFalse();
+    }
+
+    @Test
+    public void powerSaveTurnsOn_disables() {
+        mHal.mEnabled = true;
+        connect();
+        mWatchdog.onBatteryLevelChanged(80, false, false);
+
+        mWatchdog.onPowerSaveChanged(true);
+        mLooper.processAllMessages();
+
+        assertThat(mHal.mEnabled).isFalse();
+        assertThat(mProxy.isEnabled()).isFalse();
+    }
+
+    @Test
+    public void enabledElsewhereWhileLow_disables() {
+        connect();
+        mWatchdog.onBatteryLevelChanged(MIN_BATTERY - 10, false, false);
+        final int changes = mChanges;
+
+        // Another client of the HAL turns it on, the tile notices on its next refresh
+        mHal.mEnabled = true;
+        mProxy.refresh();
+        mLooper.processAllMessages();
+
+        assertThat(mHal.mEnabled).isFalse();
+        assertThat(mProxy.isEnabled()).isFalse();
+        assertThat(mChanges).isGreaterThan(changes);
+    }
+
+    private void connect() {
+        assertThat(mProxy.connect()).isTrue();
+        mLooper.processAllMessages();
+        assertThat(mProxy.getMinBattery()).isEqualTo(MIN_BATTERY);
+    }
+
+    private static final class FakePowerShare extends IPowerShare.Stub {
+        boolean mEnabled;
+        int mMinBattery = MIN_BATTERY;
+
+        @Override
+        public boolean isEnabled() {
+            return mEnabled;
+        }
+
+        @Override
+        public boolean setEnabled(boolean enable) {
+            mEnabled = enable;
+            return mEnabled;
+        }
+
+        @Override
+        public int getMinBattery() {
+            return mMinBattery;
+        }
+
+        @Override
+        public int setMinBattery(int minBattery) {
+            mMinBattery = minBattery;
+            return mMinBattery;
+        }
+    }
+}
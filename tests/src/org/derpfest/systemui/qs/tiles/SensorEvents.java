@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2024 DerpFest AOSP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.derpfest.systemui.qs.tiles;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+
+/** Builds real sensors and events, which have no public constructors. */
+final class SensorEvents {
+
+    private SensorEvents() {
+    }
+
+    static Sensor createSensor(int type) throws ReflectiveOperationException {
+        final Constructor<Sensor> constructor = Sensor.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        final Sensor sensor = constructor.newInstance();
+        final Field field = Sensor.class.getDeclaredField("mType");
+        field.setAccessible(true);
+        field.setInt(sensor, type);
+        return sensor;
+    }
+
+    static SensorEvent createEvent(Sensor sensor, float... values)
+            throws ReflectiveOperationException {
+        final Constructor<SensorEvent> constructor =
+                SensorEvent.class.getDeclaredConstructor(int.class);
+        constructor.setAccessible(true);
+        final SensorEvent event = constructor.newInstance(values.length);
+        event.sensor = sensor;
+        System.arraycopy(values, 0, event.values, 0, values.length);
+        return event;
+    }
+
+    /** Sets a rotation vector event to a rotation of {@code degrees} around the z axis. */
+    static void setRotation(SensorEvent event, float degrees) {
+        final double halfAngle = Math.toRadians(degrees) / 2;
+        event.values[0] = 0;
+        event.values[1] = 0;
+        event.values[2] = (float) Math.sin(halfAngle);
+        event.values[3] = (float) Math.cos(halfAngle);
+    }
+}